@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import processing.core.PVector;
+
+/**
+ * Mapping screen points into a surface's (u,v) space, one at a time and in
+ * batches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CursorBenchmark {
+
+	static final int BATCH = 1024;
+
+	CornerPinSurface surface;
+
+	float[] points;
+
+	float[] batch;
+
+	int next;
+
+	@Setup
+	public void setup() {
+		surface = Layouts.create(1, 10, 1).getSurface(0);
+		points = Layouts.points(1, BATCH, 2);
+		batch = new float[BATCH * 2];
+	}
+
+	@Benchmark
+	public PVector getTransformedCursor() {
+		int i = next;
+		next = (next + 2) % points.length;
+		return surface.getTransformedCursor(points[i], points[i + 1]);
+	}
+
+	@Benchmark
+	public float[] mapToSurface() {
+		System.arraycopy(points, 0, batch, 0, batch.length);
+		surface.mapToSurface(batch);
+		return batch;
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The scalar and Vector API kernels on the work they speed up: a dense mesh
+ * calculation, mapping a batch of points, and warping a 1080p frame. The
+ * forked JVMs get the jdk.incubator.vector module, so this needs Java 17 and
+ * a build that included the vector module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class KernelBenchmark {
+
+	static final int FRAME_W = 1920;
+	static final int FRAME_H = 1080;
+
+	@Param({ "scalar", "vector" })
+	String kernel;
+
+	WarpKernel previous;
+
+	CornerPinSurface mesh;
+
+	float[] points;
+
+	CornerPinSurface frame;
+
+	SoftwareWarp warp;
+
+	int[] src;
+
+	int[] dst;
+
+	@Setup
+	public void setup() {
+		previous = WarpKernel.current;
+		WarpKernel k = kernel.equals("vector") ? WarpKernel
+				.load(WarpKernel.VECTOR_KERNEL) : new WarpKernel.Scalar();
+		if (k == null)
+			throw new IllegalStateException("The vector kernel is not available");
+		WarpKernel.current = k;
+
+		mesh = Layouts.create(1, 200, 1).getSurface(0);
+		points = Layouts.points(1, 10000, 1);
+
+		Keystone ks = new Keystone(Layouts.applet());
+		frame = ks.createCornerPinSurface(FRAME_W, FRAME_H, 20);
+		frame.setCorners(new float[] { 40, 20, FRAME_W - 10, 60, FRAME_W - 60,
+				FRAME_H - 10, 10, FRAME_H - 40 });
+		Random random = new Random(1);
+		src = new int[FRAME_W * FRAME_H];
+		for (int i = 0; i < src.length; i++)
+			src[i] = random.nextInt();
+		dst = new int[FRAME_W * FRAME_H];
+		warp = new SoftwareWarp(1);
+	}
+
+	@TearDown
+	public void tearDown() {
+		WarpKernel.current = previous;
+	}
+
+	@Benchmark
+	public MeshSnapshot calculateMesh() {
+		mesh.editLock.lock();
+		try {
+			mesh.calculateMesh();
+		} finally {
+			mesh.editLock.unlock();
+		}
+		return mesh.mesh.get();
+	}
+
+	@Benchmark
+	public float[] mapToSurface() {
+		float[] xy = points.clone();
+		mesh.mapToSurface(xy);
+		return xy;
+	}
+
+	@Benchmark
+	public int[] warpFrame() {
+		warp.render(frame, src, FRAME_W, FRAME_H, 0, 0, FRAME_W, FRAME_H, dst,
+				FRAME_W, FRAME_H);
+		return dst;
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving and loading layouts, in both formats, to and from disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LayoutBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	int surfaces;
+
+	Keystone ks;
+
+	File dir;
+	String xmlFile;
+	String binaryFile;
+
+	@Setup
+	public void setup() throws IOException {
+		ks = Layouts.create(surfaces, 10, 1);
+		dir = File.createTempFile("keystone", "bench");
+		dir.delete();
+		dir.mkdirs();
+		xmlFile = new File(dir, "keystone.xml").getAbsolutePath();
+		binaryFile = new File(dir, "keystone.bin").getAbsolutePath();
+		ks.save(xmlFile);
+		ks.saveBinary(binaryFile);
+	}
+
+	@TearDown
+	public void tearDown() {
+		new File(xmlFile).delete();
+		new File(binaryFile).delete();
+		dir.delete();
+	}
+
+	@Benchmark
+	public void saveXML() {
+		ks.save(xmlFile);
+	}
+
+	@Benchmark
+	public void loadXML() {
+		ks.load(xmlFile);
+	}
+
+	@Benchmark
+	public void saveBinary() {
+		ks.saveBinary(binaryFile);
+	}
+
+	@Benchmark
+	public void loadBinary() {
+		ks.loadBinary(binaryFile);
+	}
+
+	/**
+	 * What a save costs the animation thread with background saving on.
+	 */
+	@Benchmark
+	public LayoutSnapshot capture() {
+		return LayoutSnapshot.capture(ks.surfaces);
+	}
+
+	@Benchmark
+	public ByteBuffer encodeBinary() {
+		return BinaryLayout.encode(LayoutSnapshot.capture(ks.surfaces));
+	}
+}
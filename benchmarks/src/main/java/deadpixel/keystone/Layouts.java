@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.util.Random;
+
+import processing.core.PApplet;
+
+/**
+ * Synthetic layouts for the benchmarks: surfaces laid out on a grid, like
+ * tiles on a video wall, with their corners pulled about at random. Layouts
+ * are reproducible for a given seed.
+ */
+class Layouts {
+
+	static final int SURFACE_W = 200;
+	static final int SURFACE_H = 150;
+	static final int GAP = 10;
+
+	// how far the corners are pulled from the rectangle, in pixels
+	static final float JITTER = 20;
+
+	/**
+	 * @return A Keystone with the given number of warped surfaces
+	 */
+	static Keystone create(int count, int res, long seed) {
+		Keystone ks = new Keystone(applet());
+		Random random = new Random(seed);
+		int cols = columns(count);
+		for (int i = 0; i < count; i++) {
+			CornerPinSurface s = ks.createCornerPinSurface(SURFACE_W,
+					SURFACE_H, res);
+			s.setPosition((i % cols) * (SURFACE_W + GAP), (i / cols)
+					* (SURFACE_H + GAP));
+			s.setCorners(new float[] { jitter(random), jitter(random),
+					SURFACE_W + jitter(random), jitter(random),
+					SURFACE_W + jitter(random), SURFACE_H + jitter(random),
+					jitter(random), SURFACE_H + jitter(random) });
+		}
+		return ks;
+	}
+
+	/**
+	 * @return count random (x, y) points over a layout of the given size,
+	 *         most of them over a surface
+	 */
+	static float[] points(int surfaces, int count, long seed) {
+		Random random = new Random(seed);
+		int cols = columns(surfaces);
+		int rows = (surfaces + cols - 1) / cols;
+		float[] xy = new float[count * 2];
+		for (int i = 0; i < count * 2; i += 2) {
+			xy[i] = random.nextFloat() * cols * (SURFACE_W + GAP);
+			xy[i + 1] = random.nextFloat() * rows * (SURFACE_H + GAP);
+		}
+		return xy;
+	}
+
+	static PApplet applet() {
+		return new PApplet();
+	}
+
+	private static int columns(int count) {
+		return Math.max(1, (int) Math.ceil(Math.sqrt(count)));
+	}
+
+	private static float jitter(Random random) {
+		return (random.nextFloat() * 2 - 1) * JITTER;
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recalculating the mesh of one surface after its corners moved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MeshBenchmark {
+
+	@Param({ "10", "50", "200" })
+	int res;
+
+	CornerPinSurface surface;
+
+	float offset = 0.5f;
+
+	@Setup
+	public void setup() {
+		surface = Layouts.create(1, res, 1).getSurface(0);
+	}
+
+	@Benchmark
+	public MeshSnapshot calculateMesh() {
+		surface.editLock.lock();
+		try {
+			surface.calculateMesh();
+		} finally {
+			surface.editLock.unlock();
+		}
+		return surface.mesh.get();
+	}
+
+	/**
+	 * A corner drag: the corner moves, and the next query brings the mesh
+	 * up to date.
+	 */
+	@Benchmark
+	public MeshSnapshot moveCorner() {
+		offset = -offset;
+		surface.moveMeshPointBy(CornerPinSurface.TL, offset, offset);
+		return surface.snapshot();
+	}
+}
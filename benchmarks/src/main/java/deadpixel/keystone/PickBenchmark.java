@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding what is under the mouse in layouts of increasing size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PickBenchmark {
+
+	@Param({ "10", "100", "1000", "5000" })
+	int surfaces;
+
+	Keystone ks;
+
+	float[] points;
+
+	int[] surfaceIndex;
+
+	int next;
+
+	@Setup
+	public void setup() {
+		ks = Layouts.create(surfaces, 10, 1);
+		points = Layouts.points(surfaces, 1024, 2);
+		surfaceIndex = new int[points.length / 2];
+	}
+
+	/**
+	 * The top-most surface under a point, through the spatial index.
+	 */
+	@Benchmark
+	public int getSurfaceIndexAt() {
+		int i = next;
+		next = (next + 2) % points.length;
+		return ks.getSurfaceIndexAt(points[i], points[i + 1]);
+	}
+
+	/**
+	 * A batch of points at once, as tracking several blobs does. The cost
+	 * should follow the number of points, not the number of surfaces.
+	 */
+	@Benchmark
+	public int[] containsAll() {
+		ks.containsAll(points, surfaceIndex);
+		return surfaceIndex;
+	}
+
+	/**
+	 * What a mouse press does: control point, then surface, selection for
+	 * every surface near the mouse.
+	 */
+	@Benchmark
+	public Draggable select() {
+		int i = next;
+		next = (next + 2) % points.length;
+		float x = points[i], y = points[i + 1];
+		List<CornerPinSurface> candidates = ks.grid.candidates(x, y);
+		for (int k = candidates.size() - 1; k >= 0; k--) {
+			Draggable d = candidates.get(k).select(x, y);
+			if (d != null)
+				return d;
+		}
+		return null;
+	}
+
+	/**
+	 * The same test without the spatial index, as isMouseOver() does it
+	 * when called on every surface.
+	 */
+	@Benchmark
+	public int containsLinear() {
+		int i = next;
+		next = (next + 2) % points.length;
+		for (int k = ks.getSurfaceCount() - 1; k >= 0; k--) {
+			if (ks.getSurface(k).contains(points[i], points[i + 1]))
+				return k;
+		}
+		return -1;
+	}
+}
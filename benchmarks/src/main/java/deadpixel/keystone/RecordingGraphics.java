@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+/**
+ * A renderer that draws nothing and only sums up the vertices it is given,
+ * so that the benchmarks measure the library's own work without a GPU.
+ */
+class RecordingGraphics extends PGraphics {
+
+	int vertexCount;
+	int shapeCount;
+	double checksum;
+
+	void reset() {
+		vertexCount = 0;
+		shapeCount = 0;
+		checksum = 0;
+	}
+
+	public void vertex(float x, float y, float u, float v) {
+		vertexCount++;
+		checksum += x + y + u + v;
+	}
+
+	public void beginShape(int kind) {
+		shapeCount++;
+	}
+
+	public void endShape(int mode) {
+	}
+
+	public void texture(PImage image) {
+	}
+
+	public void pushMatrix() {
+	}
+
+	public void popMatrix() {
+	}
+
+	public void translate(float x, float y) {
+	}
+
+	public void stroke(int rgb) {
+	}
+
+	public void noStroke() {
+	}
+
+	public void fill(int rgb) {
+	}
+
+	public void noFill() {
+	}
+
+	public void ellipse(float a, float b, float c, float d) {
+	}
+
+	public void blendMode(int mode) {
+	}
+}
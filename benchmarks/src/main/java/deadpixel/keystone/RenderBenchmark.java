@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * Emitting the vertices of every surface for one frame, into a renderer
+ * that only records them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+	@Param({ "1", "60", "1000" })
+	int surfaces;
+
+	@Param({ "10", "50" })
+	int res;
+
+	Keystone ks;
+
+	RecordingGraphics g;
+
+	PImage texture;
+
+	@Setup
+	public void setup() {
+		ks = Layouts.create(surfaces, res, 1);
+		g = new RecordingGraphics();
+		texture = new PImage(Layouts.SURFACE_W, Layouts.SURFACE_H,
+				PApplet.ARGB);
+	}
+
+	@Benchmark
+	public double render() {
+		g.reset();
+		for (int i = 0; i < ks.getSurfaceCount(); i++)
+			ks.getSurface(i).render(g, texture);
+		return g.checksum;
+	}
+
+	@Benchmark
+	public double renderAll() {
+		g.reset();
+		ks.renderAll(g, texture);
+		return g.checksum;
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * Warping a video frame that arrives in a direct buffer with SoftwareWarp:
+ * copied into a PImage first, as sketches had to before, or read straight
+ * from the buffer; and warping again only a 64x64 area that changed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WarpBenchmark {
+
+	@Param({ "1920x1080", "3840x2160" })
+	String size;
+
+	@Param({ "false", "true" })
+	boolean lookupTable;
+
+	int width, height;
+
+	CornerPinSurface surface;
+
+	SoftwareWarp warp;
+
+	ByteBuffer frame;
+
+	PixelBuffer buffer;
+
+	PImage image;
+
+	int[] dst;
+
+	// a small animated area in the middle of the frame
+	int[] dirty;
+
+	@Setup
+	public void setup() {
+		String[] wh = size.split("x");
+		width = Integer.parseInt(wh[0]);
+		height = Integer.parseInt(wh[1]);
+
+		Keystone ks = new Keystone(Layouts.applet());
+		surface = ks.createCornerPinSurface(width, height, 20);
+		surface.setCorners(new float[] { 40, 20, width - 10, 60, width - 60,
+				height - 10, 10, height - 40 });
+		surface.setLookupTableEnabled(lookupTable);
+
+		frame = ByteBuffer.allocateDirect(width * height * 4);
+		frame.order(ByteOrder.nativeOrder());
+		Random random = new Random(1);
+		IntBuffer ints = frame.asIntBuffer();
+		while (ints.hasRemaining())
+			ints.put(random.nextInt());
+		buffer = new PixelBuffer(frame.asIntBuffer(), width, height);
+
+		image = new PImage(width, height, PApplet.ARGB);
+		dst = new int[width * height];
+		warp = new SoftwareWarp(1);
+
+		dirty = new int[] { width / 2, height / 2, 64, 64 };
+		warp.renderDirty(surface, buffer, 0, 0, width, height, dirty, dst,
+				width, height);
+	}
+
+	@Benchmark
+	public int[] copyToImage() {
+		frame.asIntBuffer().get(image.pixels);
+		warp.render(surface, image.pixels, width, height, 0, 0, width, height,
+				dst, width, height);
+		return dst;
+	}
+
+	@Benchmark
+	public int[] readBuffer() {
+		warp.render(surface, buffer, 0, 0, width, height, dst, width, height);
+		return dst;
+	}
+
+	@Benchmark
+	public int[] readBufferDirty() {
+		warp.renderDirty(surface, buffer, 0, 0, width, height, dirty, dst,
+				width, height);
+		return dst;
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+/**
+ * A mesh for a corner pin surface that is only as dense as the perspective
+ * needs. The graphics card maps textures linearly across each triangle, so
+ * a tile that is strongly foreshortened shows the texture bent along its
+ * diagonal; a tile that is barely skewed looks right even when it is large.
+ *
+ * Starting from the whole surface, a tile is split in four whenever the
+ * point where the card would draw the middle of the tile, or the middle of
+ * one of its edges, is further than the tolerance from where the
+ * perspective transform puts it. A surface that is not skewed at all ends
+ * up as a single tile.
+ *
+ * Neighbouring tiles can be split to different depths. The seam between
+ * them then has a T-junction, but since the larger tile's edge was within
+ * the tolerance, so is the gap.
+ */
+class AdaptiveMesh {
+
+	// limits the mesh to 4^10 tiles in degenerate cases
+	static final int MAX_DEPTH = 10;
+
+	// what the mesh was built for
+	final int version;
+	final float tolerance;
+
+	// (x, y, u, v) for each of the four vertices of every tile, with the
+	// positions relative to the surface and (u, v) in surface pixels
+	float[] vertices;
+	int length;
+
+	private final Homography homography;
+	private final double tolerance2;
+	private final double[] point = new double[2];
+
+	AdaptiveMesh(MeshSnapshot m, int w, int h, float tolerance) {
+		this.version = m.version;
+		this.tolerance = tolerance;
+		this.homography = m.homography;
+		this.tolerance2 = (double) tolerance * tolerance;
+		this.vertices = new float[64];
+
+		homography.transform(0, 0, point);
+		double x00 = point[0], y00 = point[1];
+		homography.transform(w, 0, point);
+		double x10 = point[0], y10 = point[1];
+		homography.transform(w, h, point);
+		double x11 = point[0], y11 = point[1];
+		homography.transform(0, h, point);
+		double x01 = point[0], y01 = point[1];
+		subdivide(0, 0, w, h, x00, y00, x10, y10, x11, y11, x01, y01, 0);
+	}
+
+	/**
+	 * Emits the tile from (u0, v0) to (u1, v1), whose corners are at the
+	 * given positions, or splits it if it is too far off.
+	 */
+	private void subdivide(double u0, double v0, double u1, double v1,
+			double x00, double y00, double x10, double y10, double x11,
+			double y11, double x01, double y01, int depth) {
+		if (depth < MAX_DEPTH) {
+			double um = (u0 + u1) / 2;
+			double vm = (v0 + v1) / 2;
+
+			homography.transform(um, vm, point);
+			double cx = point[0], cy = point[1];
+			homography.transform(um, v0, point);
+			double tx = point[0], ty = point[1];
+			homography.transform(u1, vm, point);
+			double rx = point[0], ry = point[1];
+			homography.transform(um, v1, point);
+			double bx = point[0], by = point[1];
+			homography.transform(u0, vm, point);
+			double lx = point[0], ly = point[1];
+
+			// the middle of the tile is drawn halfway along the diagonal
+			// that splits it into triangles
+			if (off(cx, cy, x00, y00, x11, y11)
+					|| off(tx, ty, x00, y00, x10, y10)
+					|| off(rx, ry, x10, y10, x11, y11)
+					|| off(bx, by, x01, y01, x11, y11)
+					|| off(lx, ly, x00, y00, x01, y01)) {
+				subdivide(u0, v0, um, vm, x00, y00, tx, ty, cx, cy, lx, ly,
+						depth + 1);
+				subdivide(um, v0, u1, vm, tx, ty, x10, y10, rx, ry, cx, cy,
+						depth + 1);
+				subdivide(um, vm, u1, v1, cx, cy, rx, ry, x11, y11, bx, by,
+						depth + 1);
+				subdivide(u0, vm, um, v1, lx, ly, cx, cy, bx, by, x01, y01,
+						depth + 1);
+				return;
+			}
+		}
+
+		if (length + 16 > vertices.length) {
+			float[] grown = new float[vertices.length * 2];
+			System.arraycopy(vertices, 0, grown, 0, length);
+			vertices = grown;
+		}
+		put(x00, y00, u0, v0);
+		put(x10, y10, u1, v0);
+		put(x11, y11, u1, v1);
+		put(x01, y01, u0, v1);
+	}
+
+	/**
+	 * @return true if (px, py) is further than the tolerance from the middle
+	 *         of a and b
+	 */
+	private boolean off(double px, double py, double ax, double ay,
+			double bx, double by) {
+		double dx = px - (ax + bx) / 2;
+		double dy = py - (ay + by) / 2;
+		return dx * dx + dy * dy > tolerance2;
+	}
+
+	private void put(double x, double y, double u, double v) {
+		vertices[length++] = (float) x;
+		vertices[length++] = (float) y;
+		vertices[length++] = (float) u;
+		vertices[length++] = (float) v;
+	}
+
+	/**
+	 * @return The number of tiles in the mesh
+	 */
+	int getTileCount() {
+		return length / 16;
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A compact binary alternative to the XML layout files, for large walls
+ * where parsing the XML delays the first frame. Files are read through a
+ * memory-mapped channel and the point data is stored as packed arrays, so
+ * loading is mostly bulk copies.
+ *
+ * All values are big-endian:
+ *
+ * <pre>
+ * int    magic ("KSTN")
+ * int    format version
+ * int    surface count
+ * for each surface:
+ *   int    id (the surface's index in the layout)
+ *   int    type (0 for a corner pin surface, 1 for a mesh warp surface)
+ *   int    influence (mesh warp surfaces only, otherwise -1)
+ *   int    w, h, res
+ *   float  x, y
+ *   int    control point count (n)
+ *   int[n]   mesh indices
+ *   float[n] x, then float[n] y, then float[n] u, then float[n] v
+ * </pre>
+ */
+class BinaryLayout {
+
+	static final int MAGIC = 0x4B53544E;
+
+	static final int VERSION = 1;
+
+	/**
+	 * Writes the surfaces to a file.
+	 */
+	static void save(List<CornerPinSurface> surfaces, File file)
+			throws IOException {
+		LayoutWriter.write(file, encode(LayoutSnapshot.capture(surfaces)));
+	}
+
+	/**
+	 * Reads a layout file and applies it to the Keystone's surfaces. Surfaces
+	 * listed in the file that don't exist yet are created.
+	 */
+	static void load(Keystone ks, File file) throws IOException {
+		decode(map(file)).apply(ks);
+	}
+
+	/**
+	 * Maps a whole file into memory.
+	 */
+	static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return The snapshot in the binary layout format, ready to be read
+	 */
+	static ByteBuffer encode(LayoutSnapshot snapshot) {
+		int size = 12;
+		for (LayoutSnapshot.Surface s : snapshot.surfaces)
+			size += 36 + s.indices.length * 20;
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(snapshot.surfaces.length);
+
+		for (int id = 0; id < snapshot.surfaces.length; id++) {
+			LayoutSnapshot.Surface s = snapshot.surfaces[id];
+			int n = s.indices.length;
+
+			buffer.putInt(id);
+			buffer.putInt(s.type == LayoutSnapshot.MESH_WARP ? 1 : 0);
+			buffer.putInt(s.type == LayoutSnapshot.MESH_WARP ? s.influence
+					: -1);
+			buffer.putInt(s.w);
+			buffer.putInt(s.h);
+			buffer.putInt(s.res);
+			buffer.putFloat(s.x);
+			buffer.putFloat(s.y);
+			buffer.putInt(n);
+
+			buffer.asIntBuffer().put(s.indices);
+			buffer.position(buffer.position() + n * 4);
+			FloatBuffer floats = buffer.asFloatBuffer();
+			floats.put(s.pointX);
+			floats.put(s.pointY);
+			floats.put(s.pointU);
+			floats.put(s.pointV);
+			buffer.position(buffer.position() + n * 16);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Reads a layout in the binary format.
+	 */
+	static LayoutSnapshot decode(ByteBuffer buffer) throws IOException {
+		try {
+			if (buffer.remaining() < 12 || buffer.getInt() != MAGIC)
+				throw new IOException("not a Keystone binary layout");
+			int version = buffer.getInt();
+			if (version != VERSION)
+				throw new IOException("unsupported layout version " + version);
+
+			int count = buffer.getInt();
+			LayoutSnapshot snapshot = new LayoutSnapshot(count);
+			for (int k = 0; k < count; k++) {
+				LayoutSnapshot.Surface s = new LayoutSnapshot.Surface();
+				int id = buffer.getInt();
+				if (id != k)
+					throw new IOException("surfaces out of order");
+				int type = buffer.getInt();
+				if (type != 0 && type != 1)
+					throw new IOException("bad type " + type + " for surface "
+							+ id);
+				s.type = type == 1 ? LayoutSnapshot.MESH_WARP
+						: LayoutSnapshot.CORNER_PIN;
+				s.influence = buffer.getInt();
+				s.w = buffer.getInt();
+				s.h = buffer.getInt();
+				s.res = buffer.getInt();
+				s.x = buffer.getFloat();
+				s.y = buffer.getFloat();
+				int n = buffer.getInt();
+				if (n < 0 || n > buffer.remaining() / 20)
+					throw new IOException("truncated layout");
+
+				s.indices = new int[n];
+				s.pointX = new float[n];
+				s.pointY = new float[n];
+				s.pointU = new float[n];
+				s.pointV = new float[n];
+				buffer.asIntBuffer().get(s.indices);
+				buffer.position(buffer.position() + n * 4);
+				FloatBuffer floats = buffer.asFloatBuffer();
+				floats.get(s.pointX);
+				floats.get(s.pointY);
+				floats.get(s.pointU);
+				floats.get(s.pointV);
+				buffer.position(buffer.position() + n * 16);
+
+				int points = (s.res + 1) * (s.res + 1);
+				for (int i : s.indices) {
+					if (i < 0 || i >= points)
+						throw new IOException("bad point index " + i
+								+ " for surface " + id);
+				}
+				snapshot.surfaces[k] = s;
+			}
+			return snapshot;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated layout");
+		}
+	}
+}
@@ -17,17 +17,17 @@
 
 package deadpixel.keystone;
 
-import java.awt.Point;
-import java.awt.geom.Point2D;
-
-import javax.media.jai.PerspectiveTransform;
-import javax.media.jai.WarpPerspective;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import processing.core.PApplet;
 import processing.core.PGraphics;
 import processing.core.PImage;
+import processing.core.PShape;
 import processing.core.PVector;
 import processing.data.XML;
+import processing.opengl.PGraphicsOpenGL;
 
 /**
  * A simple Corner Pin "keystoned" surface. The surface is a quad mesh that can
@@ -36,12 +36,43 @@ import processing.data.XML;
  * September-2011 Added JAI library for keystone calculus (@edumo)
  * 
  * March-2013 Added methods to programmatically move the corner points
+ * 
+ * October-2026 Replaced JAI with the built-in Homography class
+ * 
+ * The control points can be moved from any thread. Edits are made to the
+ * arrays below under editLock, and the calculated mesh is published as an
+ * immutable MeshSnapshot; rendering and queries only ever read a snapshot,
+ * and never wait for a writer.
  */
 public class CornerPinSurface implements Draggable {
 
 	PApplet parent;
 
-	MeshPoint[] mesh;
+	// The mesh is stored as parallel arrays (one entry per grid point, row
+	// by row) rather than as one object per point, so that the render and
+	// recalculation loops walk contiguous memory. MeshPoint is only a handle
+	// onto an index in these arrays. They are only accessed with editLock
+	// held; readers use the published snapshot instead.
+	float[] meshX;
+	float[] meshY;
+	float[] meshU;
+	float[] meshV;
+	BitSet controlPoints;
+
+	// held while the control points are edited or the mesh is recalculated
+	final ReentrantLock editLock = new ReentrantLock();
+
+	// the mesh as last calculated, see snapshot()
+	final AtomicReference<MeshSnapshot> mesh = new AtomicReference<MeshSnapshot>();
+	int meshVersion;
+
+	// distance from a control point within which a click selects it
+	static final float PICK_RADIUS = 30;
+
+	// stacking order (higher is on top) and the spatial index that needs to
+	// hear about moves; both are set by Keystone
+	int order;
+	SurfaceGrid grid;
 
 	public float x;
 	public float y;
@@ -56,14 +87,97 @@ public class CornerPinSurface implements Draggable {
 	public static int BL; // bottom left
 	public static int BR; // bottom right
 
+	// mesh indices of this surface's own corners; the static ones above are
+	// overwritten by every new surface, so they're only valid for the most
+	// recent resolution
+	int tl;
+	int tr;
+	int bl;
+	int br;
+
 	int w;
 	int h;
 
 	int gridColor;
 	int controlPointColor;
 
-	// Jai class for keystone calculus
-	WarpPerspective warpPerspective = null;
+	// set when a control point moved and the mesh has not been recalculated
+	// yet; the mesh is rebuilt lazily, at most once, before it is next used
+	volatile boolean meshDirty = false;
+
+	// Precomputed vertex stream for render(): (x, y, u, v) for each of the
+	// four vertices of every tile, for the texture section that was used by
+	// the last render() call. Rebuilt when the mesh or the section changes.
+	float[] vertices;
+	int verticesLength;
+	int verticesVersion = -1;
+	// incremented every time the stream is rebuilt
+	int verticesStamp;
+	int verticesTX;
+	int verticesTY;
+	int verticesTW;
+	int verticesTH;
+
+	// section of the texture drawn by Keystone.renderAll()
+	int sectionX;
+	int sectionY;
+	int sectionW;
+	int sectionH;
+
+	// Adaptive mode: when the tolerance is above zero, and the corners are
+	// the only control points, the mesh drawn is subdivided only as much as
+	// the perspective needs instead of using the res x res grid. Rebuilt
+	// when the mesh changes.
+	float adaptiveTolerance = 0;
+	AdaptiveMesh adaptive;
+
+	// where timings are reported, null when the metrics are off; the last
+	// render time is kept for the per-surface figures
+	volatile KeystoneMetrics metrics;
+	long lastRenderNanos;
+
+	// Retained mode: the mesh is kept in a PShape (one triangle strip per
+	// row of tiles, so neighbouring tiles share their vertices) and only the
+	// texture is swapped every frame.
+	boolean retained = false;
+	PShape shape;
+	int shapeVersion = -1;
+	PGraphics shapeRenderer;
+	int shapeTX;
+	int shapeTY;
+	int shapeTW;
+	int shapeTH;
+	int shapeTextureW;
+	int shapeTextureH;
+	int shapeVertices;
+
+	// Edge blending: the texture section drawn by the last render() call,
+	// which Keystone uses to find the overlaps between surfaces, and the
+	// mask multiplied over the surface (null when it doesn't overlap any
+	// other). The mask's own vertex stream is rebuilt when the mesh or the
+	// mask changes.
+	PImage blendTexture;
+	int blendTX;
+	int blendTY;
+	int blendTW;
+	int blendTH;
+	PImage blendMask;
+	float[] blendVertices;
+	int blendVerticesVersion = -1;
+	PImage blendVerticesMask;
+
+	// Optional inverse-warp lookup table for SoftwareWarp, rebuilt when the
+	// mesh is recalculated
+	boolean lookupTableEnabled = false;
+	int lookupTableMaxBytes = WarpTable.DEFAULT_MAX_BYTES;
+	WarpTable lookupTable;
+
+	// the last complete warp by SoftwareWarp.renderDirty()
+	SoftwareWarp.Warped warped;
+
+	// where the surface's content is in the Keystone's texture atlas, if it
+	// has one
+	TextureAtlas.Slot atlasSlot;
 
 	/**
 	 * @param parent
@@ -85,28 +199,41 @@ public class CornerPinSurface implements Draggable {
 		res++;
 		this.res = res;
 
-		// initialize the point array
-		mesh = new MeshPoint[res * res];
-		for (int i = 0; i < mesh.length; i++) {
+		// initialize the point arrays
+		int count = res * res;
+		meshX = new float[count];
+		meshY = new float[count];
+		meshU = new float[count];
+		meshV = new float[count];
+		controlPoints = new BitSet(count);
+		for (int i = 0; i < count; i++) {
 			float x = (i % res) / (float) (res - 1);
 			float y = (i / res) / (float) (res - 1);
-			mesh[i] = new MeshPoint(this, x * w, y * h, x * w, y * h);
+			meshX[i] = meshU[i] = x * w;
+			meshY[i] = meshV[i] = y * h;
 		}
 
 		// indices of the corner points
-		TL = 0 + 0; // x + y
-		TR = res - 1 + 0;
-		BL = 0 + (res - 1) * (res);
-		BR = res - 1 + (res - 1) * (res);
+		tl = 0 + 0; // x + y
+		tr = res - 1 + 0;
+		bl = 0 + (res - 1) * (res);
+		br = res - 1 + (res - 1) * (res);
+		TL = tl;
+		TR = tr;
+		BL = bl;
+		BR = br;
 
 		// make the corners control points
-		mesh[TL].setControlPoint(true);
-		mesh[TR].setControlPoint(true);
-		mesh[BL].setControlPoint(true);
-		mesh[BR].setControlPoint(true);
+		controlPoints.set(tl);
+		controlPoints.set(tr);
+		controlPoints.set(bl);
+		controlPoints.set(br);
 
 		calculateMesh();
 
+		sectionW = w;
+		sectionH = h;
+
 		this.gridColor = 128;
 		this.controlPointColor = 0xFF00FF00;
 	}
@@ -125,7 +252,207 @@ public class CornerPinSurface implements Draggable {
 	 * CornerPinSurface.TR or CornerPinSurface.BR*
 	 */
 	public void moveMeshPointBy(int corner, float moveX, float moveY) {
-		mesh[corner].moveTo(mesh[corner].x + moveX, mesh[corner].y + moveY);
+		corner = cornerIndex(corner);
+		editLock.lock();
+		try {
+			meshX[corner] += moveX;
+			meshY[corner] += moveY;
+			invalidateMesh();
+		} finally {
+			editLock.unlock();
+		}
+	}
+
+	/**
+	 * Moves all four corners at once, with a single mesh update. The array
+	 * holds the new (x, y) positions, relative to the surface's position, in
+	 * this order: top left, top right, bottom right, bottom left.
+	 */
+	public void setCorners(float[] corners) {
+		editLock.lock();
+		try {
+			setCorner(tl, corners[0], corners[1]);
+			setCorner(tr, corners[2], corners[3]);
+			setCorner(br, corners[4], corners[5]);
+			setCorner(bl, corners[6], corners[7]);
+			invalidateMesh();
+		} finally {
+			editLock.unlock();
+		}
+	}
+
+	/**
+	 * Moves all four corners by some amount, with a single mesh update. The
+	 * array holds the (x, y) offsets in this order: top left, top right,
+	 * bottom right, bottom left.
+	 */
+	public void moveCornersBy(float[] offsets) {
+		editLock.lock();
+		try {
+			setCorner(tl, meshX[tl] + offsets[0], meshY[tl] + offsets[1]);
+			setCorner(tr, meshX[tr] + offsets[2], meshY[tr] + offsets[3]);
+			setCorner(br, meshX[br] + offsets[4], meshY[br] + offsets[5]);
+			setCorner(bl, meshX[bl] + offsets[6], meshY[bl] + offsets[7]);
+			invalidateMesh();
+		} finally {
+			editLock.unlock();
+		}
+	}
+
+	/**
+	 * Maps one of the static corner constants, which follow the resolution
+	 * of the last surface created, onto this surface's own corner.
+	 */
+	private int cornerIndex(int corner) {
+		if (corner == TL)
+			return tl;
+		if (corner == TR)
+			return tr;
+		if (corner == BL)
+			return bl;
+		if (corner == BR)
+			return br;
+		return corner;
+	}
+
+	private void setCorner(int corner, float x, float y) {
+		meshX[corner] = x;
+		meshY[corner] = y;
+	}
+
+	/**
+	 * Returns a handle onto one of the points of the mesh. Points are
+	 * numbered row by row, from the top left corner.
+	 */
+	public MeshPoint getMeshPoint(int i) {
+		return new MeshPoint(this, i);
+	}
+
+	/**
+	 * Moves one mesh point, relative to the surface's position.
+	 */
+	void movePoint(int i, float x, float y) {
+		editLock.lock();
+		try {
+			meshX[i] = x;
+			meshY[i] = y;
+			invalidatePoint(i);
+		} finally {
+			editLock.unlock();
+		}
+	}
+
+	void setControlPoint(int i, boolean cp) {
+		editLock.lock();
+		try {
+			controlPoints.set(i, cp);
+			invalidatePoint(i);
+		} finally {
+			editLock.unlock();
+		}
+	}
+
+	/**
+	 * Turns retained mode on or off. In retained mode the warped mesh is
+	 * stored in a PShape that is only rebuilt when the mesh changes, instead
+	 * of being sent to the renderer vertex by vertex on every frame. This
+	 * only applies to OpenGL renderers (P2D / P3D) and outside of calibration
+	 * mode; otherwise the surface is drawn in immediate mode as usual.
+	 */
+	public void setRetainedMode(boolean retained) {
+		this.retained = retained;
+		if (!retained) {
+			shape = null;
+			shapeRenderer = null;
+		}
+	}
+
+	/**
+	 * @return true if the surface is drawn in retained mode
+	 */
+	public boolean isRetainedMode() {
+		return retained;
+	}
+
+	/**
+	 * Turns adaptive subdivision on, with the given tolerance in pixels, or
+	 * off with a tolerance of zero. Instead of drawing the res x res grid,
+	 * the surface is split into tiles only where the texture would visibly
+	 * bend, so that a surface that is barely skewed is drawn with a handful
+	 * of tiles, and a steep one gets as many as it needs. Half a pixel is a
+	 * good tolerance. Surfaces with control points other than their corners
+	 * always use the grid.
+	 */
+	public void setAdaptive(float tolerance) {
+		adaptiveTolerance = Math.max(0, tolerance);
+		adaptive = null;
+		verticesVersion = -1;
+		shape = null;
+	}
+
+	/**
+	 * @return The adaptive subdivision tolerance, in pixels, or zero when
+	 *         the grid is used
+	 */
+	public float getAdaptiveTolerance() {
+		return adaptiveTolerance;
+	}
+
+	/**
+	 * @return The adaptive mesh for the given snapshot, or null if the grid
+	 *         is used
+	 */
+	private AdaptiveMesh adaptiveMesh(MeshSnapshot m) {
+		if (adaptiveTolerance <= 0 || m.controlIndices.length != 4)
+			return null;
+		if (adaptive == null || adaptive.version != m.version)
+			adaptive = new AdaptiveMesh(m, w, h, adaptiveTolerance);
+		return adaptive;
+	}
+
+	/**
+	 * Turns the software warp lookup table on or off. With the table, 
+	 * SoftwareWarp precomputes where every destination pixel samples the 
+	 * source and reuses that until the surface changes, which turns each 
+	 * frame into a plain gather. This pays off for static layouts showing 
+	 * live content.
+	 */
+	public void setLookupTableEnabled(boolean enabled) {
+		lookupTableEnabled = enabled;
+		if (!enabled)
+			lookupTable = null;
+	}
+
+	/**
+	 * @return true if SoftwareWarp uses a lookup table for this surface
+	 */
+	public boolean isLookupTableEnabled() {
+		return lookupTableEnabled;
+	}
+
+	/**
+	 * Sets the maximum size of the lookup table, in bytes (16 MB by default).
+	 * When the surface covers more pixels than the table can hold, the table
+	 * is stored at a lower resolution and interpolated; if even the lowest
+	 * resolution doesn't fit, the surface is warped without a table.
+	 */
+	public void setLookupTableMaxBytes(int maxBytes) {
+		lookupTableMaxBytes = maxBytes;
+		if (lookupTable != null)
+			lookupTable.valid = false;
+	}
+
+	/**
+	 * Sets the section of the texture that Keystone.renderAll() draws onto
+	 * this surface. By default, it is the top left corner of the texture,
+	 * at the surface's size. Keystone.setSource() sets it to the surface's
+	 * slot in the texture atlas.
+	 */
+	public void setTextureSection(int tX, int tY, int tW, int tH) {
+		sectionX = tX;
+		sectionY = tY;
+		sectionW = tW;
+		sectionH = tH;
 	}
 
 	/**
@@ -168,8 +495,31 @@ public class CornerPinSurface implements Draggable {
 	 */
 	public void render(PGraphics g, PImage texture, int tX, int tY, int tW,
 			int tH) {
+		KeystoneMetrics metrics = this.metrics;
+		if (metrics == null) {
+			draw(g, texture, tX, tY, tW, tH);
+			return;
+		}
+		long start = System.nanoTime();
+		int drawn = draw(g, texture, tX, tY, tW, tH);
+		lastRenderNanos = System.nanoTime() - start;
+		metrics.surfaceRendered(lastRenderNanos, drawn);
+	}
+
+	/**
+	 * @return The number of vertices sent to the renderer
+	 */
+	private int draw(PGraphics g, PImage texture, int tX, int tY, int tW,
+			int tH) {
+		MeshSnapshot m = snapshot();
+		recordSection(texture, tX, tY, tW, tH);
+
+		if (retained && !Keystone.calibrate && g instanceof PGraphicsOpenGL) {
+			return renderRetained(g, m, texture, tX, tY, tW, tH);
+		}
+
 		g.pushMatrix();
-		g.translate(x, y);
+		g.translate(m.x, m.y);
 		if (Keystone.calibrate)
 			g.stroke(gridColor);
 		else
@@ -177,34 +527,239 @@ public class CornerPinSurface implements Draggable {
 		g.fill(255);
 		g.beginShape(PApplet.QUADS);
 		g.texture(texture);
-		float u, v = 0;
+		int length = vertexStream(m, tX, tY, tW, tH);
+		float[] vs = vertices;
+		for (int i = 0; i < length; i += 4)
+			g.vertex(vs[i], vs[i + 1], vs[i + 2], vs[i + 3]);
+		g.endShape(PApplet.CLOSE);
+
+		if (Keystone.calibrate)
+			renderControlPoints(g, m);
+		else if (blendMask != null)
+			renderBlendMask(g, m);
+
+		g.popMatrix();
+		return length / 4;
+	}
+
+	/**
+	 * Remembers the texture section being drawn, for edge blending.
+	 */
+	void recordSection(PImage texture, int tX, int tY, int tW, int tH) {
+		blendTexture = texture;
+		blendTX = tX;
+		blendTY = tY;
+		blendTW = tW;
+		blendTH = tH;
+	}
+
+	/**
+	 * Brings the vertex stream up to date with the snapshot and the texture
+	 * section.
+	 * 
+	 * @return The number of floats in the stream
+	 */
+	int vertexStream(MeshSnapshot m, int tX, int tY, int tW, int tH) {
+		if (verticesVersion != m.version || tX != verticesTX
+				|| tY != verticesTY || tW != verticesTW || tH != verticesTH)
+			calculateVertices(m, tX, tY, tW, tH);
+		return verticesLength;
+	}
+
+	/**
+	 * Draws the cached PShape, rebuilding it first if the mesh, the texture
+	 * section or the texture size changed since it was built.
+	 * 
+	 * @return The number of vertices in the shape
+	 */
+	private int renderRetained(PGraphics g, MeshSnapshot m, PImage texture,
+			int tX, int tY, int tW, int tH) {
+		if (shape == null || shapeVersion != m.version || shapeRenderer != g
+				|| tX != shapeTX
+				|| tY != shapeTY || tW != shapeTW || tH != shapeTH
+				|| texture.width != shapeTextureW
+				|| texture.height != shapeTextureH)
+			calculateShape(g, m, texture, tX, tY, tW, tH);
+		else
+			shape.setTexture(texture);
+
+		g.pushMatrix();
+		g.translate(m.x, m.y);
+		g.shape(shape);
+		if (blendMask != null)
+			renderBlendMask(g, m);
+		g.popMatrix();
+		return shapeVertices;
+	}
+
+	/**
+	 * Multiplies the edge blending mask over what was just drawn, through
+	 * the same mesh.
+	 */
+	private void renderBlendMask(PGraphics g, MeshSnapshot m) {
+		PImage mask = blendMask;
+		if (blendVerticesVersion != m.version || blendVerticesMask != mask) {
+			int size = (res - 1) * (res - 1) * 4 * 4;
+			if (blendVertices == null || blendVertices.length != size)
+				blendVertices = new float[size];
+			float uScale = (float) mask.width / w;
+			float vScale = (float) mask.height / h;
+			float[] vs = blendVertices;
+			int n = 0;
+			for (int x = 0; x < res - 1; x++) {
+				for (int y = 0; y < res - 1; y++) {
+					int[] corners = { x + y * res, (x + 1) + y * res,
+							(x + 1) + (y + 1) * res, x + (y + 1) * res };
+					for (int i : corners) {
+						vs[n++] = m.meshX[i];
+						vs[n++] = m.meshY[i];
+						vs[n++] = m.meshU[i] * uScale;
+						vs[n++] = m.meshV[i] * vScale;
+					}
+				}
+			}
+			blendVerticesVersion = m.version;
+			blendVerticesMask = mask;
+		}
+
+		g.blendMode(PApplet.MULTIPLY);
+		g.noStroke();
+		g.beginShape(PApplet.QUADS);
+		g.texture(mask);
+		float[] vs = blendVertices;
+		for (int i = 0; i < vs.length; i += 4)
+			g.vertex(vs[i], vs[i + 1], vs[i + 2], vs[i + 3]);
+		g.endShape(PApplet.CLOSE);
+		g.blendMode(PApplet.BLEND);
+	}
+
+	/**
+	 * Builds the retained PShape: a group with one triangle strip per row of
+	 * tiles, using normalized texture coordinates so that any texture of the
+	 * same size can be swapped in afterwards.
+	 */
+	private void calculateShape(PGraphics g, MeshSnapshot m, PImage texture,
+			int tX, int tY, int tW, int tH) {
+		float[] meshX = m.meshX, meshY = m.meshY;
+		float[] meshU = m.meshU, meshV = m.meshV;
+		float uScale = (float) tW / w / texture.width;
+		float vScale = (float) tH / h / texture.height;
+		float uOffset = (float) tX / texture.width;
+		float vOffset = (float) tY / texture.height;
+
+		AdaptiveMesh a = adaptiveMesh(m);
+		PShape group = g.createShape(PApplet.GROUP);
+		if (a != null) {
+			// the tiles have different sizes, so they can't be stripped
+			PShape quads = g.createShape();
+			quads.beginShape(PApplet.QUADS);
+			quads.textureMode(PApplet.NORMAL);
+			quads.noStroke();
+			quads.texture(texture);
+			float[] vs = a.vertices;
+			for (int i = 0; i < a.length; i += 4)
+				quads.vertex(vs[i], vs[i + 1], uOffset + vs[i + 2] * uScale,
+						vOffset + vs[i + 3] * vScale);
+			quads.endShape();
+			group.addChild(quads);
+			shapeVertices = a.length / 4;
+		} else {
+			for (int y = 0; y < res - 1; y++) {
+				PShape row = g.createShape();
+				row.beginShape(PApplet.TRIANGLE_STRIP);
+				row.textureMode(PApplet.NORMAL);
+				row.noStroke();
+				row.texture(texture);
+				for (int x = 0; x < res; x++) {
+					int i = x + y * res;
+					row.vertex(meshX[i], meshY[i],
+							uOffset + meshU[i] * uScale, vOffset + meshV[i]
+									* vScale);
+					i += res;
+					row.vertex(meshX[i], meshY[i],
+							uOffset + meshU[i] * uScale, vOffset + meshV[i]
+									* vScale);
+				}
+				row.endShape();
+				group.addChild(row);
+			}
+			shapeVertices = (res - 1) * res * 2;
+		}
+
+		shape = group;
+		shapeRenderer = g;
+		shapeTX = tX;
+		shapeTY = tY;
+		shapeTW = tW;
+		shapeTH = tH;
+		shapeTextureW = texture.width;
+		shapeTextureH = texture.height;
+		shapeVersion = m.version;
+	}
+
+	/**
+	 * Fills the vertex stream used by render() with the mesh positions and
+	 * the texture coordinates mapped onto the given section of the texture.
+	 */
+	private void calculateVertices(MeshSnapshot m, int tX, int tY, int tW,
+			int tH) {
+		float uScale = (float) tW / w;
+		float vScale = (float) tH / h;
+
+		AdaptiveMesh a = adaptiveMesh(m);
+		if (a != null) {
+			if (vertices == null || vertices.length < a.length)
+				vertices = new float[a.length];
+			float[] src = a.vertices;
+			for (int i = 0; i < a.length; i += 4) {
+				vertices[i] = src[i];
+				vertices[i + 1] = src[i + 1];
+				vertices[i + 2] = tX + src[i + 2] * uScale;
+				vertices[i + 3] = tY + src[i + 3] * vScale;
+			}
+			verticesLength = a.length;
+			verticesStamp++;
+			verticesTX = tX;
+			verticesTY = tY;
+			verticesTW = tW;
+			verticesTH = tH;
+			verticesVersion = m.version;
+			return;
+		}
+
+		int size = (res - 1) * (res - 1) * 4 * 4;
+		if (vertices == null || vertices.length < size)
+			vertices = new float[size];
+		verticesLength = size;
+
+		int n = 0;
 		for (int x = 0; x < res - 1; x++) {
 			for (int y = 0; y < res - 1; y++) {
-				MeshPoint mp;
-				mp = mesh[(x) + (y) * res];
-				u = PApplet.map(mp.u, 0, w, tX, tX + tW);
-				v = PApplet.map(mp.v, 0, h, tY, tY + tH);
-				g.vertex(mp.x, mp.y, u, v);
-				mp = mesh[(x + 1) + (y) * res];
-				u = PApplet.map(mp.u, 0, w, tX, tX + tW);
-				v = PApplet.map(mp.v, 0, h, tY, tY + tH);
-				g.vertex(mp.x, mp.y, u, v);
-				mp = mesh[(x + 1) + (y + 1) * res];
-				u = PApplet.map(mp.u, 0, w, tX, tX + tW);
-				v = PApplet.map(mp.v, 0, h, tY, tY + tH);
-				g.vertex(mp.x, mp.y, u, v);
-				mp = mesh[(x) + (y + 1) * res];
-				u = PApplet.map(mp.u, 0, w, tX, tX + tW);
-				v = PApplet.map(mp.v, 0, h, tY, tY + tH);
-				g.vertex(mp.x, mp.y, u, v);
+				n = putVertex(m, n, (x) + (y) * res, tX, tY, uScale, vScale);
+				n = putVertex(m, n, (x + 1) + (y) * res, tX, tY, uScale,
+						vScale);
+				n = putVertex(m, n, (x + 1) + (y + 1) * res, tX, tY, uScale,
+						vScale);
+				n = putVertex(m, n, (x) + (y + 1) * res, tX, tY, uScale,
+						vScale);
 			}
 		}
-		g.endShape(PApplet.CLOSE);
 
-		if (Keystone.calibrate)
-			renderControlPoints(g);
+		verticesTX = tX;
+		verticesTY = tY;
+		verticesTW = tW;
+		verticesTH = tH;
+		verticesVersion = m.version;
+		verticesStamp++;
+	}
 
-		g.popMatrix();
+	private int putVertex(MeshSnapshot m, int n, int i, int tX, int tY,
+			float uScale, float vScale) {
+		vertices[n++] = m.meshX[i];
+		vertices[n++] = m.meshY[i];
+		vertices[n++] = tX + m.meshU[i] * uScale;
+		vertices[n++] = tY + m.meshV[i] * vScale;
+		return n;
 	}
 
 	/**
@@ -215,9 +770,58 @@ public class CornerPinSurface implements Draggable {
 	 */
 
 	public PVector getTransformedCursor(int cx, int cy) {
-		Point2D point = warpPerspective.mapSourcePoint(new Point(cx - (int) x,
-				cy - (int) y));
-		return new PVector((int) point.getX(), (int) point.getY());
+		MeshSnapshot m = snapshot();
+		PVector cursor = new PVector();
+		m.homography.inverseTransform(cx - m.x, cy - m.y, cursor);
+		cursor.x = (int) cursor.x;
+		cursor.y = (int) cursor.y;
+		return cursor;
+	}
+
+	/**
+	 * Same as getTransformedCursor(int, int), but with sub-pixel precision 
+	 * for both the input and the result.
+	 * 
+	 * @return The transformed position
+	 */
+	public PVector getTransformedCursor(float cx, float cy) {
+		MeshSnapshot m = snapshot();
+		PVector cursor = new PVector();
+		m.homography.inverseTransform(cx - m.x, cy - m.y, cursor);
+		return cursor;
+	}
+
+	/**
+	 * Maps a batch of points from screen coordinates into the surface's 
+	 * coordinate system, in place. The array holds the points as (x, y) 
+	 * pairs. The results are in surface pixels, from (0, 0) to (w, h).
+	 */
+	public void mapToSurface(float[] xy) {
+		mapToSurface(xy, false);
+	}
+
+	/**
+	 * Maps a batch of points from screen coordinates into the surface's 
+	 * coordinate system, in place. The array holds the points as (x, y) 
+	 * pairs. If normalized is true, the results range from (0, 0) to (1, 1)
+	 * over the surface; otherwise they are in surface pixels.
+	 */
+	public void mapToSurface(float[] xy, boolean normalized) {
+		MeshSnapshot m = snapshot();
+		int count = xy.length / 2;
+		for (int i = 0; i < count * 2; i += 2) {
+			xy[i] -= m.x;
+			xy[i + 1] -= m.y;
+		}
+		m.homography.inverseTransform(xy, 0, count);
+		if (normalized) {
+			float sx = 1f / w;
+			float sy = 1f / h;
+			for (int i = 0; i < count * 2; i += 2) {
+				xy[i] *= sx;
+				xy[i + 1] *= sy;
+			}
+		}
 	}
 
 	private PVector getTransformedMouseOld() {
@@ -236,17 +840,17 @@ public class CornerPinSurface implements Draggable {
 		int lmy = parent.mouseY - (int) y;
 
 		// these will make the following equations more clear
-		float x0 = mesh[BL].x;
-		float y0 = mesh[BL].y;
+		float x0 = meshX[bl];
+		float y0 = meshY[bl];
 
-		float x1 = mesh[BR].x;
-		float y1 = mesh[BR].y;
+		float x1 = meshX[br];
+		float y1 = meshY[br];
 
-		float x2 = mesh[TL].x;
-		float y2 = mesh[TL].y;
+		float x2 = meshX[tl];
+		float y2 = meshY[tl];
 
-		float x3 = mesh[TR].x;
-		float y3 = mesh[TR].y;
+		float x3 = meshX[tr];
+		float y3 = meshY[tr];
 
 		// terms of the algorithm
 		float a = cross2(x0 - lmx, y0 - lmy, x0 - x2, y0 - y2);
@@ -295,14 +899,12 @@ public class CornerPinSurface implements Draggable {
 	/**
 	 * Draws targets around the control points
 	 */
-	private void renderControlPoints(PGraphics g) {
+	private void renderControlPoints(PGraphics g, MeshSnapshot m) {
 		g.stroke(controlPointColor);
 		g.noFill();
-		for (int i = 0; i < mesh.length; i++) {
-			if (mesh[i].isControlPoint()) {
-				g.ellipse(mesh[i].x, mesh[i].y, 30, 30);
-				g.ellipse(mesh[i].x, mesh[i].y, 10, 10);
-			}
+		for (int i : m.controlIndices) {
+			g.ellipse(m.meshX[i], m.meshY[i], 30, 30);
+			g.ellipse(m.meshX[i], m.meshY[i], 10, 10);
 		}
 	}
 
@@ -324,17 +926,26 @@ public class CornerPinSurface implements Draggable {
 	 * @invisible
 	 */
 	Draggable select(float x, float y) {
+		MeshSnapshot m = snapshot();
+
+		x -= m.x;
+		y -= m.y;
+
+		// nothing to do if we're not even near the control points
+		if (x < m.minX - PICK_RADIUS || x > m.maxX + PICK_RADIUS
+				|| y < m.minY - PICK_RADIUS || y > m.maxY + PICK_RADIUS)
+			return null;
+
 		// first, see if one of the control points are selected
-		x -= this.x;
-		y -= this.y;
-		for (int i = 0; i < mesh.length; i++) {
-			if (PApplet.dist(mesh[i].x, mesh[i].y, x, y) < 30
-					&& mesh[i].isControlPoint())
-				return mesh[i];
+		for (int i : m.controlIndices) {
+			float dx = m.meshX[i] - x;
+			float dy = m.meshY[i] - y;
+			if (dx * dx + dy * dy < PICK_RADIUS * PICK_RADIUS)
+				return new MeshPoint(this, i);
 		}
 
 		// then, see if the surface itself is selected
-		if (isMouseOver()) {
+		if (m.isPointOver(x, y)) {
 			clickX = x;
 			clickY = y;
 			return this;
@@ -346,86 +957,160 @@ public class CornerPinSurface implements Draggable {
 	 * Returns true if the mouse is over this surface, false otherwise.
 	 */
 	public boolean isMouseOver() {
-		if (isPointInTriangle(parent.mouseX - x, parent.mouseY - y, mesh[TL],
-				mesh[TR], mesh[BL])
-				|| isPointInTriangle(parent.mouseX - x, parent.mouseY - y,
-						mesh[BL], mesh[TR], mesh[BR]))
-			return true;
-		return false;
+		return contains(parent.mouseX, parent.mouseY);
 	}
 
 	/**
-	 * Used for mouse selection of surfaces
+	 * Returns true if the point (x, y), in screen coordinates, is over this
+	 * surface.
 	 */
-	private boolean isPointInTriangle(float x, float y, MeshPoint a,
-			MeshPoint b, MeshPoint c) {
-		// http://www.blackpawn.com/texts/pointinpoly/default.html
-		PVector v0 = new PVector(c.x - a.x, c.y - a.y);
-		PVector v1 = new PVector(b.x - a.x, b.y - a.y);
-		PVector v2 = new PVector(x - a.x, y - a.y);
-
-		float dot00 = v0.dot(v0);
-		float dot01 = v1.dot(v0);
-		float dot02 = v2.dot(v0);
-		float dot11 = v1.dot(v1);
-		float dot12 = v2.dot(v1);
-
-		// Compute barycentric coordinates
-		float invDenom = 1 / (dot00 * dot11 - dot01 * dot01);
-		float u = (dot11 * dot02 - dot01 * dot12) * invDenom;
-		float v = (dot00 * dot12 - dot01 * dot02) * invDenom;
-
-		// Check if point is in triangle
-		return (u > 0) && (v > 0) && (u + v < 1);
+	public boolean contains(float x, float y) {
+		MeshSnapshot m = snapshot();
+		return m.isPointOver(x - m.x, y - m.y);
 	}
 
 	/**
-	 * Interpolates the position of the points in the mesh according to the 4
-	 * corners TODO: allow for arbitrary control points, not just the four
-	 * corners
+	 * Tests a batch of points, in screen coordinates, against this surface.
+	 * The xy array holds the points as (x, y) pairs; inside[i] is set to
+	 * whether point i is over the surface.
+	 * 
+	 * @return The number of points that are over the surface
 	 */
-	protected void calculateMesh() {
-
-		// The float constructor is deprecated, so casting everything to double
-		PerspectiveTransform transform = PerspectiveTransform.getQuadToQuad(0,
-				0, w, 0, w, h, 0,
-				h, // source to
-				mesh[TL].x, mesh[TL].y, mesh[TR].x, mesh[TR].y, mesh[BR].x,
-				mesh[BR].y, mesh[BL].x, mesh[BL].y); // dest
-
-		warpPerspective = new WarpPerspective(transform);
+	public int containsAll(float[] xy, boolean[] inside) {
+		MeshSnapshot m = snapshot();
+		int count = 0;
+		for (int i = 0, j = 0; j < xy.length - 1; i++, j += 2) {
+			inside[i] = m.isPointOver(xy[j] - m.x, xy[j + 1] - m.y);
+			if (inside[i])
+				count++;
+		}
+		return count;
+	}
 
-		float xStep = (float) w / (res - 1);
-		float yStep = (float) h / (res - 1);
+	/**
+	 * Marks the mesh as out of date. It will be recalculated, once, the next
+	 * time it is rendered or queried, no matter how many times the control
+	 * points moved in between. Must be called with editLock held.
+	 */
+	void invalidateMesh() {
+		meshDirty = true;
+		if (grid != null)
+			grid.invalidate(this);
+	}
 
-		for (int i = 0; i < mesh.length; i++) {
+	/**
+	 * Marks the mesh as out of date after a single point moved or changed.
+	 * Surfaces that can update part of their mesh override this to remember
+	 * which part. Must be called with editLock held.
+	 */
+	void invalidatePoint(int i) {
+		invalidateMesh();
+	}
 
-			if (TL == i || BR == i || TR == i || BL == i)
-				continue;
+	/**
+	 * Returns the current mesh, recalculating it first if any of the control
+	 * points moved since it was last calculated. This never waits: if another
+	 * thread is in the middle of editing the control points, the previous
+	 * snapshot is returned and the edit shows up on the next call.
+	 */
+	MeshSnapshot snapshot() {
+		if (meshDirty && editLock.tryLock()) {
+			try {
+				if (meshDirty) {
+					KeystoneMetrics metrics = this.metrics;
+					long start = metrics != null ? System.nanoTime() : 0;
+					calculateMesh();
+					if (metrics != null)
+						metrics.meshCalculated(System.nanoTime() - start);
+				}
+			} finally {
+				editLock.unlock();
+			}
+		}
 
-			float x = i % res;
-			float y = i / res;
+		MeshSnapshot m = mesh.get();
+		if ((m.x != x || m.y != y) && editLock.tryLock()) {
+			// the position fields are public and may have been set directly
+			try {
+				m = m.moveTo(x, y);
+				mesh.set(m);
+				if (grid != null)
+					grid.invalidate(this);
+			} finally {
+				editLock.unlock();
+			}
+		}
+		return m;
+	}
 
-			x *= xStep;
-			y *= yStep;
+	/**
+	 * Interpolates the position of the points in the mesh according to the 4
+	 * corners, and publishes the result. Must be called with editLock held.
+	 * MeshWarpSurface overrides this to interpolate between arbitrary
+	 * control points.
+	 */
+	protected void calculateMesh() {
+		meshDirty = false;
+
+		Homography homography = new Homography();
+		homography.setQuadToQuad(0, 0, w, 0, w, h, 0, h, // source to
+				meshX[tl], meshY[tl], meshX[tr], meshY[tr], meshX[br],
+				meshY[br], meshX[bl], meshY[bl]); // dest
+
+		double xStep = (double) w / (res - 1);
+		double yStep = (double) h / (res - 1);
+
+		// the corners are mapped along with their rows, then put back; the
+		// rows are mapped in the kernel's precision (see Homography)
+		float tlX = meshX[tl], tlY = meshY[tl], trX = meshX[tr], trY = meshY[tr];
+		float blX = meshX[bl], blY = meshY[bl], brX = meshX[br], brY = meshY[br];
+		WarpKernel kernel = WarpKernel.current;
+		for (int row = 0; row < res; row++)
+			kernel.transformRow(homography.m, xStep, row * yStep, meshX, meshY,
+					row * res, res);
+		meshX[tl] = tlX;
+		meshY[tl] = tlY;
+		meshX[tr] = trX;
+		meshY[tr] = trY;
+		meshX[bl] = blX;
+		meshY[bl] = blY;
+		meshX[br] = brX;
+		meshY[br] = brY;
+
+		publishMesh(homography);
+	}
 
-			Point2D point = warpPerspective.mapDestPoint(new Point((int) x,
-					(int) y));
-			mesh[i].x = (float) point.getX();
-			mesh[i].y = (float) point.getY();
-		}
+	/**
+	 * Publishes the mesh arrays, as they are now, as the next snapshot.
+	 * Must be called with editLock held.
+	 */
+	void publishMesh(Homography homography) {
+		int[] controlIndices = new int[controlPoints.cardinality()];
+		int n = 0;
+		for (int i = controlPoints.nextSetBit(0); i >= 0; i = controlPoints
+				.nextSetBit(i + 1))
+			controlIndices[n++] = i;
+
+		// the vertex stream, the retained shape and the lookup table notice
+		// the new version and rebuild themselves
+		mesh.set(new MeshSnapshot(++meshVersion, x, y, meshX.clone(),
+				meshY.clone(), meshU.clone(), meshV.clone(), controlIndices,
+				homography, tl, tr, bl, br));
 	}
 
 	private void calculateMeshOld() {
 
-		for (int i = 0; i < mesh.length; i++) {
+		for (int i = 0; i < meshX.length; i++) {
 			int x = i % res;
 			int y = i / res;
 			float fX = (float) x / (res - 1);
 			float fY = (float) y / (res - 1);
-			MeshPoint bot = mesh[TL].interpolateTo(mesh[TR], fX);
-			MeshPoint top = mesh[BL].interpolateTo(mesh[BR], fX);
-			mesh[i].interpolateBetween(bot, top, fY);
+			float topX = meshX[tl] + (meshX[tr] - meshX[tl]) * fX;
+			float topY = meshY[tl] + (meshY[tr] - meshY[tl]) * fX;
+			float botX = meshX[bl] + (meshX[br] - meshX[bl]) * fX;
+			float botY = meshY[bl] + (meshY[br] - meshY[bl]) * fX;
+			meshX[i] = topX + (botX - topX) * fY;
+			meshY[i] = topY + (botY - topY) * fY;
 		}
 	}
 
@@ -436,8 +1121,23 @@ public class CornerPinSurface implements Draggable {
 	 *            mouse was pressed when selecting the surface.
 	 */
 	public void moveTo(float x, float y) {
-		this.x = x - clickX;
-		this.y = y - clickY;
+		setPosition(x - clickX, y - clickY);
+	}
+
+	/**
+	 * Moves the surface's top left position, from any thread.
+	 */
+	void setPosition(float x, float y) {
+		editLock.lock();
+		try {
+			this.x = x;
+			this.y = y;
+			mesh.set(mesh.get().moveTo(x, y));
+			if (grid != null)
+				grid.invalidate(this);
+		} finally {
+			editLock.unlock();
+		}
 	}
 
 	/**
@@ -446,42 +1146,78 @@ public class CornerPinSurface implements Draggable {
 	 *            Populates values from an XML object
 	 */
 	void load(XML xml) {
-
-		this.x = xml.getFloat("x");
-		this.y = xml.getFloat("y");
-		// reload the mesh points
-		XML[] pointsXML = xml.getChildren("point");
-		for (XML point : pointsXML) {
-			MeshPoint mp = mesh[point.getInt("i")];
-			mp.x = point.getFloat("x");
-			mp.y = point.getFloat("y");
-			mp.u = point.getFloat("u");
-			mp.v = point.getFloat("v");
-			mp.setControlPoint(true);
+		editLock.lock();
+		try {
+			this.x = xml.getFloat("x");
+			this.y = xml.getFloat("y");
+			// reload the mesh points
+			resetControlPoints();
+			XML[] pointsXML = xml.getChildren("point");
+			for (XML point : pointsXML) {
+				setPoint(point.getInt("i"), point.getFloat("x"),
+						point.getFloat("y"), point.getFloat("u"),
+						point.getFloat("v"));
+			}
+			invalidateMesh();
+		} finally {
+			editLock.unlock();
 		}
-		calculateMesh();
+	}
+
+	/**
+	 * Sets a mesh point's position and texture coordinates and makes it a
+	 * control point. The mesh is not invalidated. Must be called with
+	 * editLock held.
+	 */
+	void setPoint(int i, float x, float y, float u, float v) {
+		meshX[i] = x;
+		meshY[i] = y;
+		meshU[i] = u;
+		meshV[i] = v;
+		controlPoints.set(i);
+	}
+
+	/**
+	 * Turns every control point other than the corners back into a regular
+	 * point, before the control points of a layout are set. The mesh is not
+	 * invalidated. Must be called with editLock held.
+	 */
+	void resetControlPoints() {
+		controlPoints.clear();
+		controlPoints.set(tl);
+		controlPoints.set(tr);
+		controlPoints.set(bl);
+		controlPoints.set(br);
+	}
+
+	/**
+	 * @return true if the mesh point is one of the four corners
+	 */
+	boolean isCorner(int i) {
+		return i == tl || i == tr || i == bl || i == br;
 	}
 
 	XML save() {
+		MeshSnapshot m = snapshot();
+		float[] meshX = m.meshX, meshY = m.meshY;
+		float[] meshU = m.meshU, meshV = m.meshV;
 
 		XML parent = new XML("surface");
 
-		parent.setFloat("x", x);
-		parent.setFloat("y", y);
-
-		for (int i = 0; i < mesh.length; i++) {
-			if (mesh[i].isControlPoint()) {
-				// fmt = "point i=\"%d\" x=\"%f\" y=\"%f\" u=\"%f\" v=\"%f\"";
-				// fmted = String.format(fmt, i, s.mesh[i].x, s.mesh[i].y,
-				// s.mesh[i].u, s.mesh[i].v);
-				XML point = new XML("point");
-				point.setFloat("x", mesh[i].x);
-				point.setFloat("y", mesh[i].y);
-				point.setFloat("u", mesh[i].u);
-				point.setFloat("v", mesh[i].v);
-				point.setFloat("i", i);
-				parent.addChild(point);
-			}
+		parent.setFloat("x", m.x);
+		parent.setFloat("y", m.y);
+
+		for (int i : m.controlIndices) {
+			// fmt = "point i=\"%d\" x=\"%f\" y=\"%f\" u=\"%f\" v=\"%f\"";
+			// fmted = String.format(fmt, i, s.meshX[i], s.meshY[i],
+			// s.meshU[i], s.meshV[i]);
+			XML point = new XML("point");
+			point.setFloat("x", meshX[i]);
+			point.setFloat("y", meshY[i]);
+			point.setFloat("u", meshU[i]);
+			point.setFloat("v", meshV[i]);
+			point.setFloat("i", i);
+			parent.addChild(point);
 		}
 		return parent;
 	}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.util.Arrays;
+import java.util.List;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * Edge blending for projectors that overlap. Surfaces overlap when they show
+ * overlapping sections of the same texture; in the overlap, each surface's
+ * brightness ramps down towards its edge so that the projected light adds
+ * up to the original image.
+ *
+ * For every surface that overlaps another, a mask is generated in the
+ * surface's (u,v) space and multiplied over the surface when it is drawn.
+ * The masks are only regenerated when the sections change, so blending
+ * costs one extra textured pass per overlapping surface and nothing else.
+ *
+ * At each point covered by several surfaces, a surface's weight is its
+ * distance to the nearest of its edges that lies inside another surface,
+ * normalized so that the weights sum to one. Edges on the outside of the
+ * wall don't fade. The weights are then corrected for the projectors'
+ * gamma, since light adds up linearly but pixel values don't.
+ */
+class EdgeBlend {
+
+	// masks are generated at a fraction of the section's resolution; the
+	// ramps are smooth and the masks are filtered when drawn
+	static final int MASK_SCALE = 4;
+
+	final float gamma;
+
+	// the textures and sections (x, y, w, h) the masks were generated for,
+	// reused from frame to frame until the number of surfaces changes
+	PImage[] textures = new PImage[0];
+	int[] sections = new int[0];
+
+	EdgeBlend(float gamma) {
+		this.gamma = gamma;
+	}
+
+	/**
+	 * Regenerates the masks if the sections drawn by the surfaces changed
+	 * since the last call.
+	 */
+	void update(List<CornerPinSurface> surfaces) {
+		int n = surfaces.size();
+		boolean changed = n != textures.length;
+		if (changed) {
+			textures = new PImage[n];
+			sections = new int[n * 4];
+		}
+		for (int i = 0; i < n; i++) {
+			CornerPinSurface s = surfaces.get(i);
+			int o = i * 4;
+			if (textures[i] != s.blendTexture || sections[o] != s.blendTX
+					|| sections[o + 1] != s.blendTY
+					|| sections[o + 2] != s.blendTW
+					|| sections[o + 3] != s.blendTH) {
+				textures[i] = s.blendTexture;
+				sections[o] = s.blendTX;
+				sections[o + 1] = s.blendTY;
+				sections[o + 2] = s.blendTW;
+				sections[o + 3] = s.blendTH;
+				changed = true;
+			}
+		}
+		if (!changed)
+			return;
+
+		for (int i = 0; i < n; i++)
+			surfaces.get(i).blendMask = createMask(surfaces, i);
+	}
+
+	/**
+	 * Removes the masks from the surfaces.
+	 */
+	static void clear(List<CornerPinSurface> surfaces) {
+		for (CornerPinSurface s : surfaces)
+			s.blendMask = null;
+	}
+
+	/**
+	 * @return The mask for surface i, or null if it doesn't overlap any
+	 *         other surface
+	 */
+	PImage createMask(List<CornerPinSurface> surfaces, int i) {
+		CornerPinSurface s = surfaces.get(i);
+		if (s.blendTexture == null || s.blendTW <= 0 || s.blendTH <= 0)
+			return null;
+
+		// the other surfaces showing part of the same section
+		int n = surfaces.size();
+		CornerPinSurface[] others = new CornerPinSurface[n];
+		int count = 0;
+		for (int j = 0; j < n; j++) {
+			CornerPinSurface o = surfaces.get(j);
+			if (j != i && o.blendTexture == s.blendTexture && overlaps(s, o))
+				others[count++] = o;
+		}
+		if (count == 0)
+			return null;
+
+		// the edges of each surface that fade, as their positions in texture
+		// pixels, or NaN for edges on the outside of the wall
+		float[] edges = new float[(count + 1) * 4];
+		innerEdges(s, surfaces, edges, 0);
+		for (int k = 0; k < count; k++)
+			innerEdges(others[k], surfaces, edges, (k + 1) * 4);
+
+		int mw = Math.max(2, (s.blendTW + MASK_SCALE - 1) / MASK_SCALE);
+		int mh = Math.max(2, (s.blendTH + MASK_SCALE - 1) / MASK_SCALE);
+		PImage mask = new PImage(mw, mh, PApplet.RGB);
+		float invGamma = 1 / gamma;
+		for (int my = 0; my < mh; my++) {
+			float y = s.blendTY + (my + 0.5f) * s.blendTH / mh;
+			for (int mx = 0; mx < mw; mx++) {
+				float x = s.blendTX + (mx + 0.5f) * s.blendTW / mw;
+
+				float own = weight(edges, 0, x, y);
+				float sum = own;
+				for (int k = 0; k < count; k++) {
+					if (contains(others[k], x, y))
+						sum += weight(edges, (k + 1) * 4, x, y);
+				}
+				float a = 1;
+				if (sum > 0)
+					a = (float) Math.pow(own / sum, invGamma);
+				int v = Math.round(a * 255);
+				mask.pixels[my * mw + mx] = 0xFF000000 | (v << 16) | (v << 8)
+						| v;
+			}
+		}
+		mask.updatePixels();
+		return mask;
+	}
+
+	/**
+	 * Finds the edges of s that fade, and stores them at edges[off].
+	 */
+	private static void innerEdges(CornerPinSurface s,
+			List<CornerPinSurface> surfaces, float[] edges, int off) {
+		Arrays.fill(edges, off, off + 4, Float.NaN);
+		for (CornerPinSurface o : surfaces) {
+			if (o != s && o.blendTexture == s.blendTexture && overlaps(s, o))
+				markInnerEdges(s, o, edges, off);
+		}
+	}
+
+	/**
+	 * Marks the edges of s (left, top, right, bottom) that lie inside o.
+	 */
+	private static void markInnerEdges(CornerPinSurface s,
+			CornerPinSurface o, float[] edges, int off) {
+		float left = s.blendTX, top = s.blendTY;
+		float right = left + s.blendTW, bottom = top + s.blendTH;
+		float oLeft = o.blendTX, oTop = o.blendTY;
+		float oRight = oLeft + o.blendTW, oBottom = oTop + o.blendTH;
+		if (left > oLeft && left < oRight)
+			edges[off] = left;
+		if (top > oTop && top < oBottom)
+			edges[off + 1] = top;
+		if (right > oLeft && right < oRight)
+			edges[off + 2] = right;
+		if (bottom > oTop && bottom < oBottom)
+			edges[off + 3] = bottom;
+	}
+
+	/**
+	 * @return The distance from (x, y) to the nearest fading edge of s, or
+	 *         a large value if none of its edges fade
+	 */
+	private static float weight(float[] edges, int off, float x, float y) {
+		float d = Float.MAX_VALUE / 16;
+		if (!Float.isNaN(edges[off]))
+			d = Math.min(d, x - edges[off]);
+		if (!Float.isNaN(edges[off + 1]))
+			d = Math.min(d, y - edges[off + 1]);
+		if (!Float.isNaN(edges[off + 2]))
+			d = Math.min(d, edges[off + 2] - x);
+		if (!Float.isNaN(edges[off + 3]))
+			d = Math.min(d, edges[off + 3] - y);
+		return Math.max(d, 0);
+	}
+
+	private static boolean overlaps(CornerPinSurface a, CornerPinSurface b) {
+		return a.blendTX < b.blendTX + b.blendTW
+				&& b.blendTX < a.blendTX + a.blendTW
+				&& a.blendTY < b.blendTY + b.blendTH
+				&& b.blendTY < a.blendTY + a.blendTH;
+	}
+
+	private static boolean contains(CornerPinSurface s, float x, float y) {
+		return x >= s.blendTX && x < s.blendTX + s.blendTW && y >= s.blendTY
+				&& y < s.blendTY + s.blendTH;
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import processing.core.PVector;
+
+/**
+ * A 2D perspective transform (a 3x3 homography) along with its inverse, in
+ * double precision. This replaces the JAI PerspectiveTransform /
+ * WarpPerspective pair that was used for the keystone calculus.
+ *
+ * The quad-to-quad mapping is solved in closed form, following Paul
+ * Heckbert's "Fundamentals of Texture Mapping and Image Warping" (1989): the
+ * unit square is mapped onto each quad, and the two mappings are combined
+ * through the adjoint of the first one.
+ *
+ * Matrices are stored row-major, and points are mapped as column vectors:
+ * (X, Y, W) = M * (x, y, 1), with the result being (X / W, Y / W).
+ *
+ * The matrices are always solved, and single points always mapped, in
+ * double precision. The batch methods that take float arrays go through
+ * WarpKernel.current instead: the scalar kernel works in double precision
+ * too, but the vector kernel maps the points in single precision, which is
+ * within a thousandth of a pixel or so for screen-sized surfaces.
+ */
+class Homography {
+
+	// forward matrix
+	final double[] m = new double[9];
+
+	// inverse matrix
+	final double[] inv = new double[9];
+
+	// scratch space, so that updating the transform does not allocate
+	private final double[] src = new double[9];
+	private final double[] dst = new double[9];
+
+	Homography() {
+		m[0] = m[4] = m[8] = 1;
+		inv[0] = inv[4] = inv[8] = 1;
+	}
+
+	/**
+	 * Sets this transform to map the quad (sx0, sy0) ... (sx3, sy3) onto the
+	 * quad (dx0, dy0) ... (dx3, dy3), with corresponding corners in the same
+	 * order.
+	 */
+	void setQuadToQuad(double sx0, double sy0, double sx1, double sy1,
+			double sx2, double sy2, double sx3, double sy3, double dx0,
+			double dy0, double dx1, double dy1, double dx2, double dy2,
+			double dx3, double dy3) {
+
+		squareToQuad(sx0, sy0, sx1, sy1, sx2, sy2, sx3, sy3, src);
+		squareToQuad(dx0, dy0, dx1, dy1, dx2, dy2, dx3, dy3, dst);
+
+		// quad to square is the adjoint of square to quad
+		adjoint(src, inv);
+		multiply(dst, inv, m);
+
+		// and the inverse of the whole thing is, again, the adjoint
+		adjoint(m, inv);
+
+		normalize(m);
+		normalize(inv);
+	}
+
+	/**
+	 * Maps count (x, y) pairs stored in pts, starting at off, in place, with
+	 * the current kernel's precision.
+	 */
+	void transform(float[] pts, int off, int count) {
+		WarpKernel.current.transform(m, pts, off, pts, off, count);
+	}
+
+	/**
+	 * Maps count (x, y) pairs from in (starting at inOff) into out (starting
+	 * at outOff). The two arrays may be the same.
+	 */
+	void transform(float[] in, int inOff, float[] out, int outOff, int count) {
+		WarpKernel.current.transform(m, in, inOff, out, outOff, count);
+	}
+
+	/**
+	 * Maps count (x, y) pairs stored in pts, starting at off, in place,
+	 * through the inverse transform.
+	 */
+	void inverseTransform(float[] pts, int off, int count) {
+		WarpKernel.current.transform(inv, pts, off, pts, off, count);
+	}
+
+	/**
+	 * Maps count (x, y) pairs from in (starting at inOff) into out (starting
+	 * at outOff) through the inverse transform. The two arrays may be the
+	 * same.
+	 */
+	void inverseTransform(float[] in, int inOff, float[] out, int outOff,
+			int count) {
+		WarpKernel.current.transform(inv, in, inOff, out, outOff, count);
+	}
+
+	/**
+	 * Maps a single point and stores the result in out[0] and out[1].
+	 */
+	void transform(double x, double y, double[] out) {
+		apply(m, x, y, out);
+	}
+
+	/**
+	 * Maps a single point through the inverse transform and stores the
+	 * result in out[0] and out[1].
+	 */
+	void inverseTransform(double x, double y, double[] out) {
+		apply(inv, x, y, out);
+	}
+
+	/**
+	 * Maps a single point through the inverse transform and stores the
+	 * result in out.x and out.y.
+	 */
+	void inverseTransform(double x, double y, PVector out) {
+		double w = inv[6] * x + inv[7] * y + inv[8];
+		out.x = (float) ((inv[0] * x + inv[1] * y + inv[2]) / w);
+		out.y = (float) ((inv[3] * x + inv[4] * y + inv[5]) / w);
+	}
+
+	private static void apply(double[] a, double x, double y, double[] out) {
+		double w = a[6] * x + a[7] * y + a[8];
+		out[0] = (a[0] * x + a[1] * y + a[2]) / w;
+		out[1] = (a[3] * x + a[4] * y + a[5]) / w;
+	}
+
+	/**
+	 * Computes the mapping of the unit square (0,0) (1,0) (1,1) (0,1) onto
+	 * the quad (x0, y0) ... (x3, y3).
+	 */
+	private static void squareToQuad(double x0, double y0, double x1,
+			double y1, double x2, double y2, double x3, double y3, double[] out) {
+
+		double sx = x0 - x1 + x2 - x3;
+		double sy = y0 - y1 + y2 - y3;
+
+		if (sx == 0 && sy == 0) {
+			// the quad is a parallelogram, so the mapping is affine
+			out[0] = x1 - x0;
+			out[1] = x2 - x1;
+			out[2] = x0;
+			out[3] = y1 - y0;
+			out[4] = y2 - y1;
+			out[5] = y0;
+			out[6] = 0;
+			out[7] = 0;
+			out[8] = 1;
+		} else {
+			double dx1 = x1 - x2;
+			double dx2 = x3 - x2;
+			double dy1 = y1 - y2;
+			double dy2 = y3 - y2;
+			double den = dx1 * dy2 - dx2 * dy1;
+			double g = (sx * dy2 - dx2 * sy) / den;
+			double h = (dx1 * sy - sx * dy1) / den;
+
+			out[0] = x1 - x0 + g * x1;
+			out[1] = x3 - x0 + h * x3;
+			out[2] = x0;
+			out[3] = y1 - y0 + g * y1;
+			out[4] = y3 - y0 + h * y3;
+			out[5] = y0;
+			out[6] = g;
+			out[7] = h;
+			out[8] = 1;
+		}
+	}
+
+	/**
+	 * The adjoint is the inverse up to a scale factor, which is all we need
+	 * for a homogeneous transform.
+	 */
+	private static void adjoint(double[] a, double[] out) {
+		out[0] = a[4] * a[8] - a[5] * a[7];
+		out[1] = a[2] * a[7] - a[1] * a[8];
+		out[2] = a[1] * a[5] - a[2] * a[4];
+		out[3] = a[5] * a[6] - a[3] * a[8];
+		out[4] = a[0] * a[8] - a[2] * a[6];
+		out[5] = a[2] * a[3] - a[0] * a[5];
+		out[6] = a[3] * a[7] - a[4] * a[6];
+		out[7] = a[1] * a[6] - a[0] * a[7];
+		out[8] = a[0] * a[4] - a[1] * a[3];
+	}
+
+	private static void multiply(double[] a, double[] b, double[] out) {
+		for (int r = 0; r < 3; r++) {
+			for (int c = 0; c < 3; c++) {
+				out[r * 3 + c] = a[r * 3] * b[c] + a[r * 3 + 1] * b[3 + c]
+						+ a[r * 3 + 2] * b[6 + c];
+			}
+		}
+	}
+
+	/**
+	 * Scales the matrix so that its bottom-right element is 1, which keeps
+	 * the numbers in a sane range after chaining adjoints.
+	 */
+	private static void normalize(double[] a) {
+		if (a[8] == 0)
+			return;
+		double s = 1 / a[8];
+		for (int i = 0; i < 9; i++)
+			a[i] *= s;
+	}
+}
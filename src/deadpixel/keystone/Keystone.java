@@ -17,7 +17,10 @@
 
 package deadpixel.keystone;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import processing.awt.PGraphicsJava2D;
 import processing.core.*;
 import processing.data.XML;
@@ -43,8 +46,38 @@ public class Keystone {
 
 	ArrayList<CornerPinSurface> surfaces;
 
+	// spatial index over the surfaces, for mouse picking
+	SurfaceGrid grid;
+	
+	// stacking order given to the next surface created, which is also its
+	// index in the surface list
+	int nextOrder;
+
 	Draggable dragged;
 
+	// writes layouts in the background, when enabled
+	LayoutWriter writer;
+
+	// reloads the layout file when it changes, when enabled
+	LayoutWatcher watcher;
+
+	// shares layout changes with other Keystone instances, when enabled
+	LayoutSync sync;
+
+	// blends the overlaps between surfaces, when enabled
+	EdgeBlend blend;
+
+	// all the surfaces' tiles in one stream, for renderAll()
+	SurfaceBatch batch;
+
+	// pages holding the surfaces' own contents, for renderSources()
+	TextureAtlas atlas;
+	int atlasPageSize = TextureAtlas.DEFAULT_PAGE_SIZE;
+
+	// timings of the work done every frame, when enabled
+	KeystoneMetrics metrics;
+	boolean metricsOverlay;
+
 	// calibration mode is application-wide, so I made this flag static
 	// there should only be one Keystone object around anyway
 	static boolean calibrate;
@@ -56,8 +89,12 @@ public class Keystone {
 	public Keystone(PApplet parent) {
 		this.parent = parent;
 		this.parent.registerMethod("mouseEvent", this);
+		this.parent.registerMethod("pre", this);
+		this.parent.registerMethod("dispose", this);
+		this.parent.registerMethod("draw", this);
 
 		surfaces = new ArrayList<CornerPinSurface>();
+		grid = new SurfaceGrid();
 		dragged = null;
 
 		// check the renderer type
@@ -65,7 +102,7 @@ public class Keystone {
 		PGraphics pg = parent.g;
 		if ((pg instanceof PGraphics3D) == false ) {
 			PApplet.println("The keystone library will not work with 2D graphics as the renderer because it relies on texture mapping. " +
-					"Try P3D or OPENGL.");
+					"Try P3D or OPENGL, or use SoftwareWarp to warp into a PImage on the CPU.");
 		}
 		
 		PApplet.println("Keystone " + VERSION);
@@ -81,10 +118,158 @@ public class Keystone {
 	 */
 	public CornerPinSurface createCornerPinSurface(int w, int h, int res) {
 		CornerPinSurface s = new CornerPinSurface(parent, w, h, res);
-		surfaces.add(s);
+		register(s);
 		return s;
 	}
 
+	/**
+	 * Creates and registers a new surface in which any point of the mesh can
+	 * be made a control point, for surfaces that are not flat.
+	 * 
+	 * @param w width
+	 * @param h height
+	 * @param res resolution (number of tiles per axis)
+	 * @return
+	 */
+	public MeshWarpSurface createMeshWarpSurface(int w, int h, int res) {
+		MeshWarpSurface s = new MeshWarpSurface(parent, w, h, res);
+		register(s);
+		return s;
+	}
+
+	private void register(CornerPinSurface s) {
+		s.order = nextOrder++;
+		s.grid = grid;
+		grid.invalidate(s);
+		s.metrics = metrics;
+		surfaces.add(s);
+	}
+
+	/**
+	 * Draws every surface in one go, each showing its own section of the 
+	 * same texture (see CornerPinSurface.setTextureSection()), in stacking 
+	 * order. This is much faster than calling render() on each surface when
+	 * there are many of them, since they are all drawn as a single shape 
+	 * with one texture bind, and only the surfaces that changed since the 
+	 * last frame are recalculated.
+	 * 
+	 * In calibration mode, and when edge blending masks are in use, the 
+	 * surfaces are drawn one by one instead.
+	 */
+	public void renderAll(PGraphics g, PImage texture) {
+		if (batch == null)
+			batch = new SurfaceBatch();
+		renderAll(g, texture, surfaces, batch);
+	}
+	
+	private void renderAll(PGraphics g, PImage texture, List<CornerPinSurface> list, SurfaceBatch batch) {
+		boolean separate = calibrate;
+		for (int i=0; !separate && i < list.size(); i++)
+			separate = list.get(i).blendMask != null;
+		if (separate) {
+			for (CornerPinSurface s : list)
+				s.render(g, texture, s.sectionX, s.sectionY, s.sectionW, s.sectionH);
+			return;
+		}
+		
+		long start = metrics != null ? System.nanoTime() : 0;
+		batch.update(list);
+		batch.render(g, texture);
+		if (metrics != null) {
+			long nanos = System.nanoTime() - start;
+			// the surfaces are drawn as one shape, so each one is charged
+			// its share of the vertices
+			for (int i=0; i < list.size(); i++) {
+				int vertices = batch.offsets[i+1] - batch.offsets[i];
+				list.get(i).lastRenderNanos = batch.length > 0 ? nanos * vertices / batch.length : 0;
+			}
+			metrics.surfaceRendered(nanos, batch.length / 4);
+		}
+	}
+	
+	/**
+	 * Draws every surface in one go, using the parent applet's renderer.
+	 */
+	public void renderAll(PImage texture) {
+		renderAll(parent.g, texture);
+	}
+	
+	/**
+	 * Gives a surface its own content, for renderSources(). Contents are packed 
+	 * into a few large offscreen pages (the texture atlas), and each surface 
+	 * is pointed at its content's section of its page, so the number of 
+	 * texture binds stays the same however many surfaces there are.
+	 * 
+	 * A PGraphics content is copied to the atlas every frame. A PImage is 
+	 * copied again after its updatePixels() is called, or when 
+	 * updateSource() says so. Passing null removes the surface's content.
+	 */
+	public void setSource(CornerPinSurface s, PImage content) {
+		if (content == null) {
+			if (atlas != null)
+				atlas.remove(s);
+			return;
+		}
+		if (atlas == null)
+			atlas = new TextureAtlas(parent, atlasPageSize);
+		atlas.put(s, content);
+	}
+	
+	/**
+	 * Copies the surface's content to the atlas again before the next frame.
+	 */
+	public void updateSource(CornerPinSurface s) {
+		if (s.atlasSlot != null)
+			s.atlasSlot.copied = false;
+	}
+	
+	/**
+	 * Sets the size of the atlas pages, 2048 by default. Contents larger than
+	 * a page get a page of their own. 
+	 */
+	public void setAtlasPageSize(int size) {
+		atlasPageSize = size;
+		if (atlas == null)
+			return;
+		TextureAtlas old = atlas;
+		atlas = new TextureAtlas(parent, size);
+		for (CornerPinSurface s : surfaces) {
+			TextureAtlas.Slot slot = s.atlasSlot;
+			if (slot != null) {
+				s.atlasSlot = null;
+				atlas.put(s, slot.content);
+			}
+		}
+		old.dispose();
+	}
+	
+	/**
+	 * @return The number of pages in the texture atlas
+	 */
+	public int getAtlasPageCount() {
+		return atlas == null ? 0 : atlas.pages.size();
+	}
+	
+	/**
+	 * Draws every surface that has a content (see setSource()), with one 
+	 * batch per atlas page. 
+	 */
+	public void renderSources(PGraphics g) {
+		if (atlas == null)
+			return;
+		atlas.update(surfaces);
+		for (TextureAtlas.Page page : atlas.pages)
+			renderAll(g, page.g, page.surfaces, page.batch);
+	}
+	
+	/**
+	 * Draws every surface that has a content, using the parent applet's 
+	 * renderer.
+	 */
+	public void renderSources() {
+		renderSources(parent.g);
+	}
+
 	/**
 	 * Starts the calibration mode. Mouse events will be intercepted to drag surfaces 
 	 * and move control points around.
@@ -124,34 +309,18 @@ public class Keystone {
 	 * Saves the layout to an XML file.
 	 */
 	public void save(String filename) {
+		long start = System.nanoTime();
 
-		XML root = new XML("keystone");
-
-		// create XML elements for each surface containing the resolution
-		// and control point data
-		for (CornerPinSurface s : surfaces) {
-			XML surface = new XML("surface");
-			surface.setInt("res", s.getRes());
-			surface.setFloat("x", s.x);
-			surface.setFloat("y", s.y);
-			surface.setInt("w", s.w);
-			surface.setInt("h", s.h);
-			for (int i=0; i < s.mesh.length; i++) {
-				if (s.mesh[i].isControlPoint()) {
-					XML point = new XML("point");
-					point.setInt("i", i);
-					point.setFloat("x", s.mesh[i].x);
-					point.setFloat("y", s.mesh[i].y);
-					point.setFloat("u", s.mesh[i].u);
-					point.setFloat("v", s.mesh[i].v);
-					//TODO: Guy's addition
-					//point.setString("id", s.mesh[i].id);
-					surface.addChild(point);
-				}
-			}
-			root.addChild(surface);
-			
+		// snapshot the surfaces and control points; this is cheap, the XML
+		// is only built afterwards
+		LayoutSnapshot snapshot = LayoutSnapshot.capture(surfaces);
+		
+		if (writer != null) {
+			writer.schedule(new File(parent.sketchPath(filename)), snapshot, false);
+			return;
 		}
+		
+		XML root = snapshot.toXML();
 		/*
 		// write the settings to keystone.xml in the sketch's data folder
 		try {
@@ -162,6 +331,8 @@ public class Keystone {
 		}		
 		*/
 		parent.saveXML(root, filename);
+		if (metrics != null)
+			metrics.lastSaveNanos = System.nanoTime() - start;
 		PApplet.println("Keystone: layout saved to " + filename);
 	}
 	
@@ -172,10 +343,45 @@ public class Keystone {
 		save("keystone.xml");
 	}
 
+	/**
+	 * Turns background saving on or off. When it is on, save() and 
+	 * saveBinary() only take a snapshot of the layout; the file is written 
+	 * on a separate thread, so saving doesn't drop frames. Saves to the same
+	 * file that happen within delay milliseconds of each other are collapsed
+	 * into a single write, which makes it cheap to save after every change 
+	 * during calibration. Files are replaced atomically, so a crash during a 
+	 * save never leaves a half-written layout.
+	 */
+	public void setBackgroundSave(boolean enabled, int delay) {
+		if (writer != null) {
+			writer.shutdown();
+			writer = null;
+		}
+		if (enabled)
+			writer = new LayoutWriter(delay);
+	}
+	
+	/**
+	 * Turns background saving on or off, with a delay of half a second.
+	 */
+	public void setBackgroundSave(boolean enabled) {
+		setBackgroundSave(enabled, 500);
+	}
+	
+	/**
+	 * Writes any layout still waiting to be saved in the background right 
+	 * away. This is done automatically when the sketch exits.
+	 */
+	public void flushSaves() {
+		if (writer != null)
+			writer.flush();
+	}
+
 	/**
 	 * Loads a saved layout from a given XML file
 	 */
 	public void load(String filename) {
+		long start = System.nanoTime();
 		XML root = parent.loadXML(filename);
 		
 		/*
@@ -195,6 +401,8 @@ public class Keystone {
 		for (int i=0; i < surfaceXML.length; i++) {
 			surfaces.get(i).load(surfaceXML[i]);
 		}
+		if (metrics != null)
+			metrics.lastLoadNanos = System.nanoTime() - start;
 
 		PApplet.println("Keystone: layout loaded from " + filename);
 	}
@@ -206,6 +414,226 @@ public class Keystone {
 		load("keystone.xml");
 	}
 	
+	/**
+	 * Saves the layout to a compact binary file, which loads much faster 
+	 * than XML for large layouts.
+	 */
+	public void saveBinary(String filename) {
+		if (writer != null) {
+			writer.schedule(new File(parent.sketchPath(filename)), LayoutSnapshot.capture(surfaces), true);
+			return;
+		}
+		try {
+			long start = System.nanoTime();
+			BinaryLayout.save(surfaces, new File(parent.sketchPath(filename)));
+			if (metrics != null)
+				metrics.lastSaveNanos = System.nanoTime() - start;
+			PApplet.println("Keystone: layout saved to " + filename);
+		} catch (IOException e) {
+			PApplet.println("Keystone: could not save layout to " + filename + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Saves the current layout into "keystone.bin"
+	 */
+	public void saveBinary() {
+		saveBinary("keystone.bin");
+	}
+	
+	/**
+	 * Loads a layout saved with saveBinary(). Unlike load(), surfaces that 
+	 * are in the file but don't exist yet are created. 
+	 */
+	public void loadBinary(String filename) {
+		// look in the data folder first, then in the sketch folder, like
+		// loadXML() does
+		File file = new File(parent.dataPath(filename));
+		if (!file.exists())
+			file = new File(parent.sketchPath(filename));
+		try {
+			long start = System.nanoTime();
+			BinaryLayout.load(this, file);
+			if (metrics != null)
+				metrics.lastLoadNanos = System.nanoTime() - start;
+			PApplet.println("Keystone: layout loaded from " + filename);
+		} catch (IOException e) {
+			PApplet.println("Keystone: could not load layout from " + filename + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Loads a binary layout from "keystone.bin"
+	 */
+	public void loadBinary() {
+		loadBinary("keystone.bin");
+	}
+	
+
+	/**
+	 * Watches a layout file and reloads it whenever it changes, for instance
+	 * when it is edited by another program or copied over from another 
+	 * machine. Both XML and binary layouts work. The file is parsed on a 
+	 * separate thread, and the changes are applied at the start of the next
+	 * frame; only the surfaces that actually changed are updated.
+	 */
+	public void watch(String filename) {
+		stopWatching();
+		File file = new File(parent.dataPath(filename));
+		if (!file.exists())
+			file = new File(parent.sketchPath(filename));
+		try {
+			watcher = new LayoutWatcher(file);
+			PApplet.println("Keystone: watching " + filename + " for changes");
+		} catch (IOException e) {
+			PApplet.println("Keystone: could not watch " + filename + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Watches "keystone.xml" for changes
+	 */
+	public void watch() {
+		watch("keystone.xml");
+	}
+	
+	/**
+	 * Stops watching the layout file
+	 */
+	public void stopWatching() {
+		if (watcher != null) {
+			watcher.stop();
+			watcher = null;
+		}
+	}
+
+	/**
+	 * Keeps this layout in sync with the Keystone layouts of other sketches,
+	 * usually one per projector on several machines, so that the whole wall
+	 * can be calibrated from any one of them. Changes are sent over UDP 
+	 * multicast to the given group address and port (for instance 
+	 * "239.0.0.57", 7400) and applied by the other sketches at the start of
+	 * their next frame. All the sketches must create their surfaces in the 
+	 * same order.
+	 * 
+	 * When a sketch joins late, it asks for the whole layout. The master 
+	 * answers; there should be exactly one master, usually the sketch used
+	 * for calibration.
+	 */
+	public void startSync(String group, int port, boolean master) {
+		stopSync();
+		try {
+			sync = new LayoutSync(group, port, master);
+			PApplet.println("Keystone: syncing layout on " + group + ":" + port);
+		} catch (IOException e) {
+			PApplet.println("Keystone: could not sync layout on " + group + ":" + port + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Stops sharing layout changes with other sketches
+	 */
+	public void stopSync() {
+		if (sync != null) {
+			sync.stop();
+			sync = null;
+		}
+	}
+
+	/**
+	 * Turns edge blending on or off. Surfaces that show overlapping sections
+	 * of the same texture (for instance two projectors that each show a bit
+	 * more than half of an offscreen PGraphics) are faded out towards each 
+	 * other in the overlap, so that the seam disappears. The fades are 
+	 * corrected for the projectors' gamma, usually around 2.2.
+	 * 
+	 * The blending masks are only regenerated when the sections change; 
+	 * otherwise they cost one extra textured pass per overlapping surface.
+	 */
+	public void setEdgeBlending(boolean enabled, float gamma) {
+		if (enabled) {
+			blend = new EdgeBlend(gamma);
+		} else {
+			blend = null;
+			EdgeBlend.clear(surfaces);
+		}
+	}
+	
+	/**
+	 * Turns edge blending on or off, with a gamma of 2.2
+	 */
+	public void setEdgeBlending(boolean enabled) {
+		setEdgeBlending(enabled, 2.2f);
+	}
+
+	/**
+	 * Turns the runtime metrics on or off. When they are on, Keystone times
+	 * mesh recalculations, rendering, mouse picking and layout files, and 
+	 * publishes the figures over JMX (as deadpixel.keystone:type=Keystone,id=
+	 * followed by a hex number that tells Keystone instances apart) so they
+	 * can be watched live in JConsole or VisualVM. They are also 
+	 * available from getMetrics(). Timing costs a few System.nanoTime() calls
+	 * per surface per frame.
+	 */
+	public void setMetricsEnabled(boolean enabled) {
+		if (enabled == (metrics != null))
+			return;
+		if (enabled) {
+			metrics = new KeystoneMetrics();
+			metrics.register(this);
+		} else {
+			metrics.unregister();
+			metrics = null;
+		}
+		for (CornerPinSurface s : surfaces)
+			s.metrics = metrics;
+	}
+	
+	/**
+	 * @return The runtime metrics, or null if they are not enabled
+	 */
+	public KeystoneMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Shows the runtime metrics in the top left corner of the screen while 
+	 * calibrating. This turns the metrics on.
+	 */
+	public void setMetricsOverlay(boolean enabled) {
+		if (enabled)
+			setMetricsEnabled(true);
+		metricsOverlay = enabled;
+	}
+
+	/**
+	 * @invisible
+	 */
+	public void pre() {
+		if (metrics != null)
+			metrics.frame(surfaces);
+		grid.checkPositions();
+		if (watcher != null) {
+			LayoutSnapshot snapshot = watcher.poll();
+			if (snapshot != null) {
+				int changed = snapshot.applyChanges(this);
+				if (changed > 0)
+					PApplet.println("Keystone: layout reloaded, " + changed + " surface(s) changed");
+			}
+		}
+		if (sync != null)
+			sync.update(this);
+		if (blend != null)
+			blend.update(surfaces);
+	}
+
+	/**
+	 * @invisible
+	 */
+	public void draw() {
+		if (calibrate && metricsOverlay && metrics != null)
+			metrics.drawOverlay(parent.g);
+	}
 
 	/**
 	 * @invisible
@@ -222,16 +650,22 @@ public class Keystone {
 		switch (e.getAction()) {
 
 		case MouseEvent.PRESS:
+			long start = System.nanoTime();
 			CornerPinSurface top = null;
-			// navigate the list backwards, as to select 
-			for (int i=surfaces.size()-1; i >= 0; i--) {
-				CornerPinSurface s = surfaces.get(i);
+			dragged = null;
+			// only look at the surfaces near the mouse, and navigate 
+			// them backwards, as to select the top-most one first
+			List<CornerPinSurface> candidates = grid.candidates(x, y);
+			for (int i=candidates.size()-1; i >= 0; i--) {
+				CornerPinSurface s = candidates.get(i);
 				dragged = s.select(x, y);
 				if (dragged != null) {
 					top = s;
 					break;
 				}
 			}
+			if (metrics != null)
+				metrics.picked(System.nanoTime() - start);
 
 			if (top != null) {
 				// moved the dragged surface to the beginning of the list
@@ -256,6 +690,50 @@ public class Keystone {
 		}
 	}
 
+	/**
+	 * Finds which surface each of a batch of points is over, for instance 
+	 * to route tracked blobs or touch points to surfaces. The xy array holds
+	 * the points, in screen coordinates, as (x, y) pairs. For each point, 
+	 * surfaceIndex[i] is set to the index of the top-most surface under it, 
+	 * or -1 if there is none.
+	 */
+	public void containsAll(float[] xy, int[] surfaceIndex) {
+		for (int i=0, j=0; j < xy.length-1; i++, j+=2) {
+			surfaceIndex[i] = getSurfaceIndexAt(xy[j], xy[j+1]);
+		}
+	}
+	
+	/**
+	 * Returns the index of the top-most surface under the point (x, y), or 
+	 * -1 if there is none.
+	 */
+	public int getSurfaceIndexAt(float x, float y) {
+		List<CornerPinSurface> candidates = grid.candidates(x, y);
+		for (int i=candidates.size()-1; i >= 0; i--) {
+			CornerPinSurface s = candidates.get(i);
+			if (s.contains(x, y))
+				return s.order;
+		}
+		return -1;
+	}
+
+	/**
+	 * @invisible
+	 */
+	public void dispose() {
+		stopWatching();
+		stopSync();
+		setMetricsEnabled(false);
+		if (atlas != null) {
+			atlas.dispose();
+			atlas = null;
+		}
+		if (writer != null) {
+			writer.shutdown();
+			writer = null;
+		}
+	}
+
 	public CornerPinSurface getSurface(int i) {
 		return surfaces.get(i);
 	}
@@ -265,7 +743,18 @@ public class Keystone {
 	}
 
 	public void clearSurfaces() {
+		for (CornerPinSurface s : surfaces) {
+			s.grid = null;
+			s.atlasSlot = null;
+		}
 		surfaces.clear();
+		grid.clear();
+		batch = null;
+		if (atlas != null) {
+			atlas.dispose();
+			atlas = null;
+		}
+		nextOrder = 0;
 	}
 
 }
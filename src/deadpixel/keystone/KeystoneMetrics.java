@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+
+/**
+ * Counters and timers for the work Keystone does every frame, to find out
+ * whether a dropped frame came from mesh recalculation, vertex emission or
+ * picking. Recording a measurement is a couple of field updates and a
+ * System.nanoTime() call, so the metrics can stay on during a show.
+ *
+ * The metrics are available from the sketch through Keystone.getMetrics(),
+ * from JMX clients under the name deadpixel.keystone:type=Keystone,id=...
+ * (the id is a hex number that tells Keystone instances apart), and on
+ * screen in calibration mode (see Keystone.setMetricsOverlay()).
+ *
+ * Frame totals are rolled over at the start of each frame, so they describe
+ * the last complete frame.
+ */
+public class KeystoneMetrics implements KeystoneMetricsMBean {
+
+	// meshes can be recalculated from any thread
+	final AtomicLong meshCount = new AtomicLong();
+	final AtomicLong meshNanos = new AtomicLong();
+	volatile long lastMeshNanos;
+
+	// mesh recalculations per second, updated about once a second
+	volatile double meshRate;
+	long rateStart;
+	long rateCount;
+
+	// totals for the frame being drawn, and for the last complete one
+	long currentVertices;
+	long currentRenderNanos;
+	volatile long frameVertices;
+	volatile long frameRenderNanos;
+	volatile long[] surfaceRenderNanos = new long[0];
+
+	volatile long lastPickNanos;
+	volatile long maxPickNanos;
+	volatile long lastSaveNanos;
+	volatile long lastLoadNanos;
+
+	ObjectName name;
+
+	void meshCalculated(long nanos) {
+		meshCount.incrementAndGet();
+		meshNanos.addAndGet(nanos);
+		lastMeshNanos = nanos;
+	}
+
+	void surfaceRendered(long nanos, int vertices) {
+		currentRenderNanos += nanos;
+		currentVertices += vertices;
+	}
+
+	void picked(long nanos) {
+		lastPickNanos = nanos;
+		if (nanos > maxPickNanos)
+			maxPickNanos = nanos;
+	}
+
+	/**
+	 * Called at the start of every frame, on the animation thread.
+	 */
+	void frame(List<CornerPinSurface> surfaces) {
+		frameVertices = currentVertices;
+		frameRenderNanos = currentRenderNanos;
+		currentVertices = 0;
+		currentRenderNanos = 0;
+
+		// the array is only replaced when the number of surfaces changes;
+		// a JMX client reading it meanwhile may see a mix of two frames
+		long[] perSurface = surfaceRenderNanos;
+		if (perSurface.length != surfaces.size())
+			perSurface = new long[surfaces.size()];
+		for (int i = 0; i < perSurface.length; i++) {
+			CornerPinSurface s = surfaces.get(i);
+			perSurface[i] = s.lastRenderNanos;
+			// a surface that is not drawn in the next frame reports 0
+			s.lastRenderNanos = 0;
+		}
+		surfaceRenderNanos = perSurface;
+
+		long now = System.nanoTime();
+		if (rateStart == 0) {
+			rateStart = now;
+			rateCount = meshCount.get();
+		} else if (now - rateStart >= 1000000000L) {
+			long count = meshCount.get();
+			meshRate = (count - rateCount) * 1e9 / (now - rateStart);
+			rateStart = now;
+			rateCount = count;
+		}
+	}
+
+	/**
+	 * Draws the metrics in the top left corner of the screen.
+	 */
+	void drawOverlay(PGraphics g) {
+		String text = "meshes/s " + PApplet.nf((float) meshRate, 0, 1)
+				+ "\nmesh " + micros(lastMeshNanos) + " us (avg "
+				+ micros(getAverageMeshNanos()) + ")\nvertices/frame "
+				+ frameVertices + "\nrender/frame "
+				+ micros(frameRenderNanos) + " us\npick " + micros(lastPickNanos)
+				+ " us (max " + micros(maxPickNanos) + ")\nsave "
+				+ micros(lastSaveNanos) + " us, load " + micros(lastLoadNanos)
+				+ " us";
+		g.pushStyle();
+		g.noStroke();
+		g.fill(0, 160);
+		g.rect(5, 5, 230, 110);
+		g.fill(255);
+		g.textSize(12);
+		g.textAlign(PApplet.LEFT, PApplet.TOP);
+		g.text(text, 12, 10);
+		g.popStyle();
+	}
+
+	private static long micros(long nanos) {
+		return nanos / 1000;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server.
+	 */
+	void register(Object owner) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			name = new ObjectName("deadpixel.keystone:type=Keystone,id="
+					+ Integer.toHexString(System.identityHashCode(owner)));
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			name = null;
+			PApplet.println("Keystone: could not register metrics with JMX: "
+					+ e.getMessage());
+		}
+	}
+
+	void unregister() {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (Exception e) {
+		}
+		name = null;
+	}
+
+	public long getMeshRecalculations() {
+		return meshCount.get();
+	}
+
+	public double getMeshRecalculationsPerSecond() {
+		return meshRate;
+	}
+
+	public long getLastMeshNanos() {
+		return lastMeshNanos;
+	}
+
+	public long getAverageMeshNanos() {
+		long count = meshCount.get();
+		return count == 0 ? 0 : meshNanos.get() / count;
+	}
+
+	public long getVerticesPerFrame() {
+		return frameVertices;
+	}
+
+	public long getRenderNanosPerFrame() {
+		return frameRenderNanos;
+	}
+
+	/**
+	 * @return The time each surface took to render in the last frame, by
+	 *         surface index
+	 */
+	public long[] getSurfaceRenderNanos() {
+		return surfaceRenderNanos.clone();
+	}
+
+	public long getLastPickNanos() {
+		return lastPickNanos;
+	}
+
+	public long getMaxPickNanos() {
+		return maxPickNanos;
+	}
+
+	public long getLastSaveNanos() {
+		return lastSaveNanos;
+	}
+
+	public long getLastLoadNanos() {
+		return lastLoadNanos;
+	}
+
+	/**
+	 * Clears the counters and maximums.
+	 */
+	public void reset() {
+		meshCount.set(0);
+		meshNanos.set(0);
+		rateStart = 0;
+		meshRate = 0;
+		maxPickNanos = 0;
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+/**
+ * The management interface of KeystoneMetrics, as seen from JMX clients
+ * such as JConsole or VisualVM. Times are in nanoseconds.
+ */
+public interface KeystoneMetricsMBean {
+
+	long getMeshRecalculations();
+
+	double getMeshRecalculationsPerSecond();
+
+	long getLastMeshNanos();
+
+	long getAverageMeshNanos();
+
+	long getVerticesPerFrame();
+
+	long getRenderNanosPerFrame();
+
+	long[] getSurfaceRenderNanos();
+
+	long getLastPickNanos();
+
+	long getMaxPickNanos();
+
+	long getLastSaveNanos();
+
+	long getLastLoadNanos();
+
+	void reset();
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.util.BitSet;
+import java.util.List;
+
+import processing.core.PApplet;
+import processing.data.XML;
+
+/**
+ * A copy of everything that goes into a layout file: for each surface, its
+ * type, size, resolution, position and control points. Taking a snapshot is
+ * cheap, so it can be done on the animation thread and the snapshot
+ * serialized somewhere else.
+ */
+class LayoutSnapshot {
+
+	// surface types; layouts from older versions don't say
+	static final int UNKNOWN = -1;
+	static final int CORNER_PIN = 0;
+	static final int MESH_WARP = 1;
+
+	/**
+	 * The saved state of one surface.
+	 */
+	static class Surface {
+		int type = UNKNOWN;
+
+		// radius of influence of a mesh warp surface's control points, or
+		// -1 if unknown
+		int influence = -1;
+
+		int w;
+		int h;
+		int res;
+		float x;
+		float y;
+
+		// control points: mesh indices, positions and texture coordinates
+		int[] indices;
+		float[] pointX;
+		float[] pointY;
+		float[] pointU;
+		float[] pointV;
+	}
+
+	Surface[] surfaces;
+
+	LayoutSnapshot(int count) {
+		surfaces = new Surface[count];
+	}
+
+	/**
+	 * Copies the state of the given surfaces.
+	 */
+	static LayoutSnapshot capture(List<CornerPinSurface> list) {
+		LayoutSnapshot snapshot = new LayoutSnapshot(list.size());
+		for (int id = 0; id < list.size(); id++) {
+			CornerPinSurface s = list.get(id);
+			MeshSnapshot m = s.snapshot();
+
+			Surface d = new Surface();
+			d.type = typeOf(s);
+			if (s instanceof MeshWarpSurface)
+				d.influence = ((MeshWarpSurface) s).influence;
+			d.w = s.w;
+			d.h = s.h;
+			d.res = s.getRes();
+			d.x = m.x;
+			d.y = m.y;
+			d.indices = m.controlIndices.clone();
+			int n = d.indices.length;
+			d.pointX = new float[n];
+			d.pointY = new float[n];
+			d.pointU = new float[n];
+			d.pointV = new float[n];
+			for (int k = 0; k < n; k++) {
+				int i = d.indices[k];
+				d.pointX[k] = m.meshX[i];
+				d.pointY[k] = m.meshY[i];
+				d.pointU[k] = m.meshU[i];
+				d.pointV[k] = m.meshV[i];
+			}
+			snapshot.surfaces[id] = d;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return The snapshot in the XML layout format
+	 */
+	XML toXML() {
+		XML root = new XML("keystone");
+
+		// create XML elements for each surface containing the resolution
+		// and control point data
+		for (Surface s : surfaces) {
+			XML surface = new XML("surface");
+			if (s.type == MESH_WARP) {
+				surface.setString("type", "mesh");
+				surface.setInt("influence", s.influence);
+			} else {
+				surface.setString("type", "cornerpin");
+			}
+			surface.setInt("res", s.res);
+			surface.setFloat("x", s.x);
+			surface.setFloat("y", s.y);
+			surface.setInt("w", s.w);
+			surface.setInt("h", s.h);
+			for (int k = 0; k < s.indices.length; k++) {
+				XML point = new XML("point");
+				point.setInt("i", s.indices[k]);
+				point.setFloat("x", s.pointX[k]);
+				point.setFloat("y", s.pointY[k]);
+				point.setFloat("u", s.pointU[k]);
+				point.setFloat("v", s.pointV[k]);
+				surface.addChild(point);
+			}
+			root.addChild(surface);
+		}
+		return root;
+	}
+
+	/**
+	 * Reads a layout in the XML format. Sizes and resolutions that are
+	 * missing from the file are set to -1.
+	 */
+	static LayoutSnapshot fromXML(XML root) {
+		XML[] surfaceXML = root.getChildren("surface");
+		LayoutSnapshot snapshot = new LayoutSnapshot(surfaceXML.length);
+		for (int id = 0; id < surfaceXML.length; id++) {
+			XML xml = surfaceXML[id];
+			Surface d = new Surface();
+			String type = xml.getString("type");
+			if ("mesh".equals(type))
+				d.type = MESH_WARP;
+			else if ("cornerpin".equals(type))
+				d.type = CORNER_PIN;
+			d.influence = xml.getInt("influence", -1);
+			d.w = xml.getInt("w", -1);
+			d.h = xml.getInt("h", -1);
+			d.res = xml.getInt("res", -1);
+			d.x = xml.getFloat("x");
+			d.y = xml.getFloat("y");
+
+			XML[] pointsXML = xml.getChildren("point");
+			int n = pointsXML.length;
+			d.indices = new int[n];
+			d.pointX = new float[n];
+			d.pointY = new float[n];
+			d.pointU = new float[n];
+			d.pointV = new float[n];
+			for (int k = 0; k < n; k++) {
+				// indices used to be written as floats
+				d.indices[k] = (int) pointsXML[k].getFloat("i");
+				d.pointX[k] = pointsXML[k].getFloat("x");
+				d.pointY[k] = pointsXML[k].getFloat("y");
+				d.pointU[k] = pointsXML[k].getFloat("u");
+				d.pointV[k] = pointsXML[k].getFloat("v");
+			}
+			snapshot.surfaces[id] = d;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Applies only what differs from the current state of the Keystone's
+	 * surfaces, so that surfaces that did not change are not touched (and
+	 * their meshes are not recalculated). Surfaces that don't exist yet are
+	 * created.
+	 * 
+	 * @return The number of surfaces that were changed or created
+	 */
+	int applyChanges(Keystone ks) {
+		int changed = 0;
+		for (int id = 0; id < surfaces.length; id++) {
+			Surface d = surfaces[id];
+
+			if (id >= ks.surfaces.size()) {
+				if (d.w < 0 || d.h < 0 || d.res < 0)
+					continue;
+				create(ks, d);
+			} else if (!matches(d, ks.surfaces.get(id))) {
+				continue;
+			}
+
+			CornerPinSurface s = ks.surfaces.get(id);
+			if (differs(d, s)) {
+				apply(d, s);
+				changed++;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @return true if the saved surface can be applied to s
+	 */
+	static boolean matches(Surface d, CornerPinSurface s) {
+		if ((d.type != UNKNOWN && d.type != typeOf(s))
+				|| (d.w >= 0 && d.w != s.w) || (d.h >= 0 && d.h != s.h)
+				|| (d.res >= 0 && d.res != s.getRes()))
+			return false;
+		int points = s.meshX.length;
+		for (int i : d.indices) {
+			if (i < 0 || i >= points)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if applying the saved surface to s would change it
+	 */
+	static boolean differs(Surface d, CornerPinSurface s) {
+		MeshSnapshot m = s.snapshot();
+		if (d.x != m.x || d.y != m.y)
+			return true;
+		if (d.influence >= 0 && s instanceof MeshWarpSurface
+				&& ((MeshWarpSurface) s).influence != d.influence)
+			return true;
+		BitSet saved = new BitSet(s.meshX.length);
+		for (int i : d.indices)
+			saved.set(i);
+		// a control point that is not saved would be turned back into a
+		// regular point
+		for (int i : m.controlIndices) {
+			if (!saved.get(i) && !s.isCorner(i))
+				return true;
+		}
+		for (int k = 0; k < d.indices.length; k++) {
+			int i = d.indices[k];
+			if (!m.isControlPoint(i) || m.meshX[i] != d.pointX[k]
+					|| m.meshY[i] != d.pointY[k] || m.meshU[i] != d.pointU[k]
+					|| m.meshV[i] != d.pointV[k])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Applies the snapshot to the Keystone's surfaces. Surfaces that don't
+	 * exist yet are created; existing ones that don't have the same size and
+	 * resolution are left alone.
+	 */
+	void apply(Keystone ks) {
+		for (int id = 0; id < surfaces.length; id++) {
+			Surface d = surfaces[id];
+
+			// create whatever is missing, in order
+			while (ks.surfaces.size() <= id)
+				create(ks, surfaces[ks.surfaces.size()]);
+
+			CornerPinSurface s = ks.surfaces.get(id);
+			if (s.w != d.w || s.h != d.h || s.getRes() != d.res
+					|| (d.type != UNKNOWN && d.type != typeOf(s))) {
+				PApplet.println("Keystone: surface " + id
+						+ " does not match the layout, skipping it");
+				continue;
+			}
+			apply(d, s);
+		}
+	}
+
+	/**
+	 * Applies the saved state of one surface. Control points that are not
+	 * in the saved state go back to following the rest of the mesh.
+	 */
+	static void apply(Surface d, CornerPinSurface s) {
+		s.editLock.lock();
+		try {
+			s.x = d.x;
+			s.y = d.y;
+			if (d.influence >= 0 && s instanceof MeshWarpSurface)
+				((MeshWarpSurface) s).influence = Math.max(1, d.influence);
+			s.resetControlPoints();
+			for (int k = 0; k < d.indices.length; k++)
+				s.setPoint(d.indices[k], d.pointX[k], d.pointY[k],
+						d.pointU[k], d.pointV[k]);
+			s.invalidateMesh();
+		} finally {
+			s.editLock.unlock();
+		}
+	}
+
+	/**
+	 * Creates a surface of the saved type; a corner pin surface if the
+	 * layout doesn't say.
+	 */
+	static CornerPinSurface create(Keystone ks, Surface d) {
+		if (d.type == MESH_WARP)
+			return ks.createMeshWarpSurface(d.w, d.h, d.res);
+		return ks.createCornerPinSurface(d.w, d.h, d.res);
+	}
+
+	static int typeOf(CornerPinSurface s) {
+		return s instanceof MeshWarpSurface ? MESH_WARP : CORNER_PIN;
+	}
+}
@@ -0,0 +1,519 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import processing.core.PApplet;
+
+/**
+ * Keeps the layouts of several Keystone instances in sync over UDP
+ * multicast, so that a wall driven by one sketch per projector, on several
+ * machines, can be calibrated from any one of them.
+ *
+ * Every frame, each node compares its surfaces with what it last sent and
+ * broadcasts the control points and positions that changed, as small delta
+ * packets. Received packets are parsed on a background thread and applied
+ * at the start of the next frame. Surfaces are identified by their index,
+ * so every node must create its surfaces in the same order.
+ *
+ * A node that starts late asks for the whole layout, and the master node
+ * answers with a snapshot in the binary layout format. Since UDP may drop
+ * or reorder packets, every change is tagged with the sequence number of
+ * its packet and only applied if it is newer than what was last applied to
+ * the same point. A gap in a sender's sequence numbers means a packet was
+ * lost (or is late), and the receiver asks that sender for a snapshot. A
+ * node also broadcasts a full snapshot shortly after it stops sending
+ * deltas, which repairs anything that was lost.
+ *
+ * Packets start with a common header, all values big-endian:
+ *
+ * <pre>
+ * int    magic ("KSYN")
+ * byte   type (DELTA, SNAPSHOT or REQUEST)
+ * long   sender id (random, chosen at startup)
+ * long   sequence number, increasing for each sender
+ * </pre>
+ *
+ * A DELTA is followed by a count and that many (int surface, int point,
+ * float x, float y) entries, where point -1 stands for the surface's
+ * position. A SNAPSHOT is a binary layout, split into as many packets as it
+ * needs; each one starts with (int index, int count, int total length)
+ * followed by its part of the layout, and the packets of one snapshot have
+ * consecutive sequence numbers. A REQUEST is empty when it is meant for the
+ * master, or holds the id of the node it is meant for.
+ */
+class LayoutSync implements Runnable {
+
+	static final int MAGIC = 0x4B53594E;
+
+	static final byte DELTA = 1;
+	static final byte SNAPSHOT = 2;
+	static final byte REQUEST = 3;
+
+	static final int HEADER_SIZE = 21;
+
+	static final int CHUNK_HEADER_SIZE = 12;
+
+	static final int DELTA_SIZE = 16;
+
+	// deltas per packet, so that a packet fits in a typical Ethernet MTU
+	static final int MAX_DELTAS = 80;
+
+	// the largest payload a UDP datagram can hold
+	static final int MAX_PACKET = 65507;
+
+	// the largest part of a snapshot sent in one packet
+	static final int MAX_CHUNK = MAX_PACKET - HEADER_SIZE - CHUNK_HEADER_SIZE;
+
+	// snapshots larger than this are not reassembled
+	static final int MAX_SNAPSHOT = 64 << 20;
+
+	// time without deltas after which a full snapshot is sent, in ms
+	static final int REPAIR_DELAY = 1000;
+
+	final MulticastSocket socket;
+
+	final InetSocketAddress group;
+
+	final Thread thread;
+
+	final boolean master;
+
+	final long id;
+
+	long sequence;
+
+	// what was last sent or received for each surface, by index
+	final ArrayList<MeshSnapshot> sent;
+
+	// packets received since the last frame, decoded
+	final ConcurrentLinkedQueue<Object> received;
+
+	// set when a peer asked this node for the layout
+	volatile boolean snapshotRequested;
+
+	// peers that sent packets this node missed, to ask for a snapshot
+	final ConcurrentLinkedQueue<Long> gaps;
+
+	// time of the last delta sent, or 0 once it has been followed by a
+	// snapshot
+	long lastDeltaTime;
+
+	// what was received from each peer, by id; only used on the receiving
+	// thread
+	final HashMap<Long, Peer> peers;
+
+	/**
+	 * One received control point or position change.
+	 */
+	static class Delta {
+		int surface;
+		int point;
+		float x;
+		float y;
+	}
+
+	/**
+	 * What was received from one peer.
+	 */
+	static class Peer {
+		// highest sequence number received
+		long highest;
+
+		// sequence number of the last snapshot applied; older changes are
+		// dropped
+		long snapshot;
+
+		// highest sequence number of any change applied since
+		long newest;
+
+		// sequence number of the last change applied to each point, by
+		// (surface << 32 | point)
+		final HashMap<Long, Long> points = new HashMap<Long, Long>();
+
+		// the snapshot being reassembled, by the sequence number of its
+		// first packet
+		long assembling;
+		byte[] layout;
+		boolean[] chunks;
+		int missing;
+	}
+
+	LayoutSync(String address, int port, boolean master) throws IOException {
+		this.master = master;
+		this.id = new Random().nextLong();
+		this.sent = new ArrayList<MeshSnapshot>();
+		this.received = new ConcurrentLinkedQueue<Object>();
+		this.gaps = new ConcurrentLinkedQueue<Long>();
+		this.peers = new HashMap<Long, Peer>();
+
+		InetAddress groupAddress = InetAddress.getByName(address);
+		if (!groupAddress.isMulticastAddress())
+			throw new IOException(address + " is not a multicast address");
+		group = new InetSocketAddress(groupAddress, port);
+
+		socket = new MulticastSocket(port);
+		// stay on the local network; the loopback is left on (the default)
+		// so that several nodes can run on one machine
+		socket.setTimeToLive(1);
+		socket.joinGroup(group, null);
+
+		thread = new Thread(this, "Keystone layout sync");
+		thread.setDaemon(true);
+		thread.start();
+
+		send(REQUEST, ByteBuffer.allocate(0));
+	}
+
+	void stop() {
+		socket.close();
+	}
+
+	/**
+	 * Called at the start of every frame: broadcasts the local changes, then
+	 * applies what was received from the other nodes.
+	 */
+	void update(Keystone ks) {
+		List<CornerPinSurface> surfaces = ks.surfaces;
+		sendChanges(surfaces);
+
+		Long peer;
+		while ((peer = gaps.poll()) != null) {
+			ByteBuffer target = ByteBuffer.allocate(8);
+			target.putLong(peer.longValue());
+			target.flip();
+			send(REQUEST, target);
+		}
+
+		long now = System.currentTimeMillis();
+		if (snapshotRequested
+				|| (lastDeltaTime != 0 && now - lastDeltaTime > REPAIR_DELAY)) {
+			snapshotRequested = false;
+			lastDeltaTime = 0;
+			sendSnapshot(surfaces);
+		}
+
+		boolean changed = false;
+		Object update;
+		while ((update = received.poll()) != null) {
+			if (update instanceof LayoutSnapshot)
+				((LayoutSnapshot) update).applyChanges(ks);
+			else
+				apply((Delta) update, surfaces);
+			changed = true;
+		}
+
+		// what was just applied must not be sent back
+		if (changed) {
+			for (int i = 0; i < surfaces.size(); i++)
+				remember(i, surfaces.get(i).snapshot());
+		}
+	}
+
+	/**
+	 * Broadcasts the positions and control points that changed since they
+	 * were last sent.
+	 */
+	private void sendChanges(List<CornerPinSurface> surfaces) {
+		ByteBuffer deltas = null;
+		int count = 0;
+
+		for (int i = 0; i < surfaces.size(); i++) {
+			MeshSnapshot m = surfaces.get(i).snapshot();
+			MeshSnapshot prev = i < sent.size() ? sent.get(i) : null;
+			if (m == prev)
+				continue;
+			remember(i, m);
+			// surfaces that were just created are only sent as part of a
+			// snapshot
+			if (prev == null)
+				continue;
+
+			if (deltas == null)
+				deltas = ByteBuffer.allocate(4 + MAX_DELTAS * DELTA_SIZE);
+
+			if (m.x != prev.x || m.y != prev.y) {
+				putDelta(deltas, i, -1, m.x, m.y);
+				if (++count == MAX_DELTAS) {
+					sendDeltas(deltas, count);
+					count = 0;
+				}
+			}
+
+			if (m.version == prev.version)
+				continue;
+			boolean samePoints = Arrays.equals(m.controlIndices,
+					prev.controlIndices);
+			for (int k : m.controlIndices) {
+				if (samePoints && m.meshX[k] == prev.meshX[k]
+						&& m.meshY[k] == prev.meshY[k])
+					continue;
+				putDelta(deltas, i, k, m.meshX[k], m.meshY[k]);
+				if (++count == MAX_DELTAS) {
+					sendDeltas(deltas, count);
+					count = 0;
+				}
+			}
+		}
+
+		if (count > 0)
+			sendDeltas(deltas, count);
+	}
+
+	private void remember(int i, MeshSnapshot m) {
+		while (sent.size() <= i)
+			sent.add(null);
+		sent.set(i, m);
+	}
+
+	private static void putDelta(ByteBuffer deltas, int surface, int point,
+			float x, float y) {
+		if (deltas.position() == 0)
+			deltas.putInt(0);
+		deltas.putInt(surface);
+		deltas.putInt(point);
+		deltas.putFloat(x);
+		deltas.putFloat(y);
+	}
+
+	private void sendDeltas(ByteBuffer deltas, int count) {
+		deltas.putInt(0, count);
+		deltas.flip();
+		send(DELTA, deltas);
+		deltas.clear();
+		lastDeltaTime = System.currentTimeMillis();
+	}
+
+	private void sendSnapshot(List<CornerPinSurface> surfaces) {
+		ByteBuffer layout = BinaryLayout.encode(LayoutSnapshot
+				.capture(surfaces));
+		int length = layout.remaining();
+		int count = Math.max(1, (length + MAX_CHUNK - 1) / MAX_CHUNK);
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK_HEADER_SIZE + MAX_CHUNK);
+		for (int i = 0; i < count; i++) {
+			int size = Math.min(MAX_CHUNK, layout.remaining());
+			chunk.clear();
+			chunk.putInt(i);
+			chunk.putInt(count);
+			chunk.putInt(length);
+			chunk.put(layout.array(), layout.arrayOffset() + layout.position(),
+					size);
+			layout.position(layout.position() + size);
+			chunk.flip();
+			send(SNAPSHOT, chunk);
+		}
+	}
+
+	private void send(byte type, ByteBuffer payload) {
+		ByteBuffer packet = ByteBuffer.allocate(HEADER_SIZE
+				+ payload.remaining());
+		packet.putInt(MAGIC);
+		packet.put(type);
+		packet.putLong(id);
+		packet.putLong(++sequence);
+		packet.put(payload);
+		try {
+			socket.send(new DatagramPacket(packet.array(), packet.position(),
+					group));
+		} catch (IOException e) {
+			PApplet.println("Keystone: could not send layout update: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Applies a received change, unless the surface or point doesn't exist
+	 * here.
+	 */
+	private static void apply(Delta d, List<CornerPinSurface> surfaces) {
+		if (d.surface < 0 || d.surface >= surfaces.size())
+			return;
+		CornerPinSurface s = surfaces.get(d.surface);
+		if (d.point == -1) {
+			s.setPosition(d.x, d.y);
+			return;
+		}
+		if (d.point < 0 || d.point >= s.meshX.length)
+			return;
+		s.editLock.lock();
+		try {
+			s.meshX[d.point] = d.x;
+			s.meshY[d.point] = d.y;
+			s.controlPoints.set(d.point);
+			s.invalidateMesh();
+		} finally {
+			s.editLock.unlock();
+		}
+	}
+
+	public void run() {
+		byte[] data = new byte[MAX_PACKET];
+		DatagramPacket packet = new DatagramPacket(data, data.length);
+		try {
+			while (true) {
+				packet.setLength(data.length);
+				socket.receive(packet);
+				try {
+					read(ByteBuffer.wrap(data, 0, packet.getLength()));
+				} catch (BufferUnderflowException e) {
+					// truncated packet
+				} catch (IOException e) {
+					PApplet.println("Keystone: bad layout snapshot received: "
+							+ e.getMessage());
+				}
+			}
+		} catch (SocketException e) {
+			// closed by stop()
+		} catch (IOException e) {
+			PApplet.println("Keystone: layout sync stopped: " + e.getMessage());
+		}
+	}
+
+	private void read(ByteBuffer packet) throws IOException {
+		if (packet.remaining() < HEADER_SIZE || packet.getInt() != MAGIC)
+			return;
+		byte type = packet.get();
+		long sender = packet.getLong();
+		long seq = packet.getLong();
+
+		// our own packets come back through the loopback
+		if (sender == id)
+			return;
+
+		Peer peer = peers.get(sender);
+		if (peer == null) {
+			peer = new Peer();
+			peers.put(sender, peer);
+		}
+		// anything between the highest sequence number so far and this one
+		// was lost or is late; either way, the sender's current layout will
+		// fix it. A node that joins late asks every sender once.
+		if (seq > peer.highest + 1)
+			gaps.add(sender);
+		if (seq > peer.highest)
+			peer.highest = seq;
+
+		switch (type) {
+		case DELTA:
+			readDeltas(packet, peer, seq);
+			break;
+
+		case SNAPSHOT:
+			readSnapshot(packet, peer, seq);
+			break;
+
+		case REQUEST:
+			if (packet.remaining() >= 8 ? packet.getLong() == id : master)
+				snapshotRequested = true;
+			break;
+		}
+	}
+
+	/**
+	 * Queues the changes in a DELTA packet that are newer than what was
+	 * already applied to the same points. This drops duplicates and
+	 * packets that arrive after newer ones, without losing the points that
+	 * only the late packet holds.
+	 */
+	private void readDeltas(ByteBuffer packet, Peer peer, long seq) {
+		if (seq <= peer.snapshot)
+			return;
+		int count = packet.getInt();
+		if (count < 0 || count > packet.remaining() / DELTA_SIZE)
+			return;
+		for (int i = 0; i < count; i++) {
+			Delta d = new Delta();
+			d.surface = packet.getInt();
+			d.point = packet.getInt();
+			d.x = packet.getFloat();
+			d.y = packet.getFloat();
+
+			Long key = Long.valueOf(((long) d.surface << 32)
+					| (d.point & 0xFFFFFFFFL));
+			Long last = peer.points.get(key);
+			if (last != null && seq <= last.longValue())
+				continue;
+			peer.points.put(key, Long.valueOf(seq));
+			if (seq > peer.newest)
+				peer.newest = seq;
+			received.add(d);
+		}
+	}
+
+	/**
+	 * Adds one part of a snapshot, and queues the snapshot once all its
+	 * parts have arrived.
+	 */
+	private void readSnapshot(ByteBuffer packet, Peer peer, long seq)
+			throws IOException {
+		int index = packet.getInt();
+		int count = packet.getInt();
+		int length = packet.getInt();
+		if (index < 0 || index >= count || length < 0
+				|| length > MAX_SNAPSHOT
+				|| count != Math.max(1, (length + MAX_CHUNK - 1) / MAX_CHUNK))
+			return;
+		long first = seq - index;
+		if (first <= peer.snapshot)
+			return;
+
+		if (peer.layout == null || peer.assembling != first) {
+			peer.assembling = first;
+			peer.layout = new byte[length];
+			peer.chunks = new boolean[count];
+			peer.missing = count;
+		}
+		if (peer.layout.length != length || peer.chunks.length != count
+				|| peer.chunks[index])
+			return;
+		int offset = index * MAX_CHUNK;
+		int size = Math.min(MAX_CHUNK, length - offset);
+		if (packet.remaining() < size)
+			return;
+		packet.get(peer.layout, offset, size);
+		peer.chunks[index] = true;
+		if (--peer.missing > 0)
+			return;
+
+		ByteBuffer layout = ByteBuffer.wrap(peer.layout);
+		peer.layout = null;
+		peer.chunks = null;
+		// a change sent after the snapshot was taken has already been
+		// applied and the snapshot would undo it; the sender repairs its
+		// layout with a newer one once it stops sending changes
+		if (first < peer.newest)
+			return;
+		peer.snapshot = first;
+		peer.points.clear();
+		received.add(BinaryLayout.decode(layout));
+	}
+}
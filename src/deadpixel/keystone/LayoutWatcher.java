@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import processing.core.PApplet;
+import processing.data.XML;
+
+/**
+ * Watches a layout file for changes, for live recalibration from an external
+ * tool. The file is re-read and parsed on a background thread whenever it
+ * changes; the animation thread only picks up the parsed layout with poll()
+ * and applies what differs from the current state.
+ *
+ * Both the XML and the binary formats are understood; binary files are
+ * recognized by their header.
+ */
+class LayoutWatcher implements Runnable {
+
+	// time given to the writer to finish before the file is read, in ms
+	static final int SETTLE_TIME = 50;
+
+	final File file;
+
+	final WatchService service;
+
+	final Thread thread;
+
+	// the last layout read, until the animation thread takes it
+	final AtomicReference<LayoutSnapshot> latest;
+
+	LayoutWatcher(File file) throws IOException {
+		this.file = file.getAbsoluteFile();
+		this.latest = new AtomicReference<LayoutSnapshot>();
+		this.service = FileSystems.getDefault().newWatchService();
+
+		// files are watched through their directory; creation events are
+		// needed too, since editors (and LayoutWriter) often replace the
+		// file instead of writing to it
+		this.file.getParentFile().toPath().register(service,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+
+		thread = new Thread(this, "Keystone layout watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return The layout read since the last call, or null if the file has
+	 *         not changed
+	 */
+	LayoutSnapshot poll() {
+		return latest.getAndSet(null);
+	}
+
+	void stop() {
+		try {
+			service.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public void run() {
+		Path name = file.toPath().getFileName();
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				boolean changed = false;
+				do {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (name.equals(event.context()))
+							changed = true;
+					}
+					key.reset();
+
+					// a single save usually triggers several events, wait
+					// for them to stop coming
+					key = service.poll(SETTLE_TIME, TimeUnit.MILLISECONDS);
+				} while (key != null);
+
+				if (changed)
+					read();
+			}
+		} catch (ClosedWatchServiceException e) {
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private void read() {
+		if (!file.exists())
+			return;
+		try {
+			// read into memory rather than mapped, so that the file is not
+			// kept open and can still be replaced
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file
+					.toPath()));
+			LayoutSnapshot snapshot;
+			if (buffer.remaining() >= 4 && buffer.getInt(0) == BinaryLayout.MAGIC)
+				snapshot = BinaryLayout.decode(buffer);
+			else
+				snapshot = LayoutSnapshot.fromXML(new XML(file));
+			latest.set(snapshot);
+		} catch (Exception e) {
+			// most likely a file that is still being written; the next
+			// change will be picked up
+			PApplet.println("Keystone: could not reload layout from "
+					+ file.getName() + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import processing.core.PApplet;
+
+/**
+ * Writes layout files on a background thread, so that saving never holds up
+ * the animation thread. Saves are debounced: when several requests for the
+ * same file arrive within the delay, only the last snapshot is written.
+ *
+ * Files are written to a temporary file first and then renamed over the
+ * destination, so a crash in the middle of a save never leaves a corrupted
+ * layout behind.
+ */
+class LayoutWriter {
+
+	ScheduledExecutorService executor;
+
+	// pending writes, by destination
+	HashMap<File, Pending> pending;
+
+	int delay;
+
+	class Pending implements Runnable {
+		final File file;
+		final LayoutSnapshot snapshot;
+		final boolean binary;
+		ScheduledFuture<?> future;
+
+		Pending(File file, LayoutSnapshot snapshot, boolean binary) {
+			this.file = file;
+			this.snapshot = snapshot;
+			this.binary = binary;
+		}
+
+		public void run() {
+			synchronized (LayoutWriter.this) {
+				// a newer snapshot may have replaced this one in the meantime
+				if (pending.get(file) != this)
+					return;
+				pending.remove(file);
+			}
+			writeSnapshot(this);
+		}
+	}
+
+	LayoutWriter(int delay) {
+		this.delay = delay;
+		this.pending = new HashMap<File, Pending>();
+		this.executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Keystone layout writer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Schedules a snapshot to be written to a file after the debounce
+	 * delay, replacing any write to the same file that is still waiting.
+	 */
+	synchronized void schedule(File file, LayoutSnapshot snapshot,
+			boolean binary) {
+		Pending previous = pending.get(file);
+		if (previous != null)
+			previous.future.cancel(false);
+
+		Pending p = new Pending(file, snapshot, binary);
+		pending.put(file, p);
+		p.future = executor.schedule(p, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes everything that is still waiting right away, and waits until
+	 * it is on disk. The writes still run on the writer thread, after any
+	 * write in progress, so two writes to the same file never overlap.
+	 */
+	void flush() {
+		Pending[] waiting;
+		synchronized (this) {
+			waiting = pending.values().toArray(new Pending[0]);
+			for (Pending p : waiting)
+				p.future.cancel(false);
+			pending.clear();
+		}
+
+		ArrayList<Future<?>> writes = new ArrayList<Future<?>>();
+		for (final Pending p : waiting) {
+			writes.add(executor.submit(new Runnable() {
+				public void run() {
+					writeSnapshot(p);
+				}
+			}));
+		}
+		// with nothing waiting, this still lets a write that had already
+		// started complete
+		if (writes.isEmpty())
+			writes.add(executor.submit(new Runnable() {
+				public void run() {
+				}
+			}));
+
+		try {
+			for (Future<?> write : writes)
+				write.get();
+		} catch (InterruptedException e) {
+			PApplet.println("Keystone: interrupted while saving the layout");
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			PApplet.println("Keystone: could not save layout: "
+					+ e.getCause());
+		}
+	}
+
+	void shutdown() {
+		flush();
+		executor.shutdown();
+	}
+
+	private void writeSnapshot(Pending p) {
+		try {
+			ByteBuffer data;
+			if (p.binary)
+				data = BinaryLayout.encode(p.snapshot);
+			else
+				data = ByteBuffer.wrap(p.snapshot.toXML().format(2)
+						.getBytes(Charset.forName("UTF-8")));
+			write(p.file, data);
+			PApplet.println("Keystone: layout saved to " + p.file.getName());
+		} catch (IOException e) {
+			PApplet.println("Keystone: could not save layout to "
+					+ p.file.getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the data to a temporary file next to the destination, then
+	 * moves it over the destination in one step. Each write gets its own
+	 * temporary file, so a save from the animation thread cannot clash with
+	 * one from the writer thread.
+	 */
+	static void write(File file, ByteBuffer data) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.exists())
+			dir.mkdirs();
+		File tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+
+		boolean moved = false;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				while (data.hasRemaining())
+					channel.write(data);
+				channel.force(true);
+			} finally {
+				raf.close();
+			}
+
+			try {
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			moved = true;
+		} finally {
+			if (!moved)
+				tmp.delete();
+		}
+	}
+}
@@ -20,63 +20,99 @@ package deadpixel.keystone;
 /**
  * Represents a single point in the mesh, along with its precomputed (u,v) 
  * texture coordinates. 
+ * 
+ * The point data itself lives in the parent surface's mesh arrays; a 
+ * MeshPoint is only a lightweight handle onto one index in those arrays.
+ * The getters read the surface's current mesh snapshot, and moving the
+ * point is safe from any thread.
+ * 
+ * The public x, y, u and v fields are kept for sketches written against
+ * older versions. They are only a copy: they are filled in when the handle
+ * is created and refreshed by the getters and moveTo(), and assigning them
+ * has no effect on the mesh.
  */
 public class MeshPoint implements Draggable {
 	
+	/** @deprecated use getX(), or moveTo() to change it */
+	@Deprecated
 	public float x;
+	/** @deprecated use getY(), or moveTo() to change it */
+	@Deprecated
 	public float y;
+	/** @deprecated use getU() */
+	@Deprecated
 	public float u;
+	/** @deprecated use getV() */
+	@Deprecated
 	public float v;
-	String id = "";
-
-	boolean isControlPoint;
 	
-	CornerPinSurface parent;
+	final CornerPinSurface parent;
+	final int index;
 	
-	MeshPoint(CornerPinSurface parent, float x, float y, float u, float v) {
-		this.x = x;
-		this.y = y;
-		this.u = u;
-		this.v = v;
-		this.isControlPoint = false;
+	MeshPoint(CornerPinSurface parent, int index) {
 		this.parent = parent;
+		this.index = index;
+		refresh(parent.snapshot());
 	}
 	
-	public boolean isControlPoint() {
-		return isControlPoint;
+	/**
+	 * Copies the point's current values into the public fields.
+	 */
+	@SuppressWarnings("deprecation")
+	private MeshSnapshot refresh(MeshSnapshot m) {
+		x = m.meshX[index];
+		y = m.meshY[index];
+		u = m.meshU[index];
+		v = m.meshV[index];
+		return m;
 	}
 	
-	public void moveTo(float x, float y) {
-		this.x = x - parent.x;
-		this.y = y - parent.y;
-		//parent.calculateMesh(this.id);
-		parent.calculateMesh();
+	/**
+	 * @return The point's index in the mesh, counted row by row
+	 */
+	public int getIndex() {
+		return index;
 	}
 	
-	protected void setControlPoint(boolean cp) {
-		isControlPoint = cp;
+	/**
+	 * @return The point's x position, relative to the surface's position
+	 */
+	public float getX() {
+		return refresh(parent.snapshot()).meshX[index];
+	}
+	
+	/**
+	 * @return The point's y position, relative to the surface's position
+	 */
+	public float getY() {
+		return refresh(parent.snapshot()).meshY[index];
 	}
 	
-	/*
-	protected void setControlPoint(String id) {
-		isControlPoint = true;
-		this.id = id;
+	/**
+	 * @return The point's u texture coordinate, in surface pixels
+	 */
+	public float getU() {
+		return refresh(parent.snapshot()).meshU[index];
 	}
-	*/
 	
 	/**
-	 * This creates a new MeshPoint with (u,v) = (0,0) and does
-	 * not modify the current MeshPoint. Its used to generate 
-	 * temporary points for the interpolation.
+	 * @return The point's v texture coordinate, in surface pixels
 	 */
-	MeshPoint interpolateTo(MeshPoint p, float f) {
-		float nX = this.x + (p.x - this.x) * f;
-		float nY = this.y + (p.y - this.y) * f;
-		return new MeshPoint(parent, nX, nY, 0, 0);
+	public float getV() {
+		return refresh(parent.snapshot()).meshV[index];
 	}
 	
-	void interpolateBetween(MeshPoint start, MeshPoint end, float f) {
-		this.x = start.x + (end.x - start.x) * f;
-		this.y = start.y + (end.y - start.y) * f;
-	}	
+	public boolean isControlPoint() {
+		return parent.snapshot().isControlPoint(index);
+	}
+	
+	public void moveTo(float x, float y) {
+		MeshSnapshot m = parent.snapshot();
+		parent.movePoint(index, x - m.x, y - m.y);
+		refresh(parent.snapshot());
+	}
+	
+	protected void setControlPoint(boolean cp) {
+		parent.setControlPoint(index, cp);
+	}
 }
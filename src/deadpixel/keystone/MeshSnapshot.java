@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.util.Arrays;
+
+/**
+ * An immutable copy of a surface's calculated mesh: its position, every mesh
+ * point, the control points and the perspective transform, along with what
+ * is derived from them for hit testing.
+ *
+ * CornerPinSurface publishes a new snapshot every time the mesh is
+ * recalculated or the surface moves. Rendering and queries work from a
+ * single snapshot, so they always see a consistent mesh, even when the
+ * control points are being moved from another thread at the same time.
+ * Nothing in a snapshot may be modified once it has been published.
+ */
+class MeshSnapshot {
+
+	// incremented every time the mesh is recalculated; snapshots that only
+	// differ by their position share the same version, and caches built
+	// from the mesh are keyed on it
+	final int version;
+
+	final float x;
+	final float y;
+
+	final float[] meshX;
+	final float[] meshY;
+	final float[] meshU;
+	final float[] meshV;
+
+	// sorted indices of the control points, and their bounding box relative
+	// to (x, y)
+	final int[] controlIndices;
+	final float minX, minY, maxX, maxY;
+
+	// edge equations (a, b, c with a*x + b*y + c > 0 inside) of the two
+	// triangles the surface is split into for hit testing: TL-TR-BL, then
+	// BL-TR-BR
+	final float[] edges;
+
+	// perspective transform from the surface's (u,v) space to the corners
+	final Homography homography;
+
+	MeshSnapshot(int version, float x, float y, float[] meshX, float[] meshY,
+			float[] meshU, float[] meshV, int[] controlIndices,
+			Homography homography, int tl, int tr, int bl, int br) {
+		this.version = version;
+		this.x = x;
+		this.y = y;
+		this.meshX = meshX;
+		this.meshY = meshY;
+		this.meshU = meshU;
+		this.meshV = meshV;
+		this.controlIndices = controlIndices;
+		this.homography = homography;
+
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		for (int i : controlIndices) {
+			minX = Math.min(minX, meshX[i]);
+			minY = Math.min(minY, meshY[i]);
+			maxX = Math.max(maxX, meshX[i]);
+			maxY = Math.max(maxY, meshY[i]);
+		}
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+
+		edges = new float[18];
+		triangleEdges(tl, tr, bl, 0);
+		triangleEdges(br, tr, bl, 9);
+	}
+
+	private MeshSnapshot(MeshSnapshot m, float x, float y) {
+		this.version = m.version;
+		this.x = x;
+		this.y = y;
+		this.meshX = m.meshX;
+		this.meshY = m.meshY;
+		this.meshU = m.meshU;
+		this.meshV = m.meshV;
+		this.controlIndices = m.controlIndices;
+		this.minX = m.minX;
+		this.minY = m.minY;
+		this.maxX = m.maxX;
+		this.maxY = m.maxY;
+		this.edges = m.edges;
+		this.homography = m.homography;
+	}
+
+	/**
+	 * @return The same mesh at another position; the point data is shared
+	 */
+	MeshSnapshot moveTo(float x, float y) {
+		return new MeshSnapshot(this, x, y);
+	}
+
+	boolean isControlPoint(int i) {
+		return Arrays.binarySearch(controlIndices, i) >= 0;
+	}
+
+	/**
+	 * Returns true if the point, relative to the surface's position, is over
+	 * the surface.
+	 */
+	boolean isPointOver(float x, float y) {
+		if (x < minX || x > maxX || y < minY || y > maxY)
+			return false;
+		float[] e = edges;
+		if (e[0] * x + e[1] * y + e[2] > 0 && e[3] * x + e[4] * y + e[5] > 0
+				&& e[6] * x + e[7] * y + e[8] > 0)
+			return true;
+		// the shared diagonal is included on this side, so that points on it
+		// are not missed by both triangles
+		return e[9] * x + e[10] * y + e[11] >= 0
+				&& e[12] * x + e[13] * y + e[14] > 0
+				&& e[15] * x + e[16] * y + e[17] > 0;
+	}
+
+	/**
+	 * Stores the edge equations of the triangle abc at edges[off], oriented
+	 * so that they are positive inside the triangle. The first equation is
+	 * the one for the edge bc.
+	 */
+	private void triangleEdges(int a, int b, int c, int off) {
+		float ax = meshX[a], ay = meshY[a];
+		float bx = meshX[b], by = meshY[b];
+		float cx = meshX[c], cy = meshY[c];
+
+		// twice the signed area, used to orient the edges
+		float area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+		float sign = area < 0 ? -1 : 1;
+
+		edge(bx, by, cx, cy, sign, off);
+		edge(cx, cy, ax, ay, sign, off + 3);
+		edge(ax, ay, bx, by, sign, off + 6);
+	}
+
+	private void edge(float px, float py, float qx, float qy, float sign,
+			int off) {
+		edges[off] = -(qy - py) * sign;
+		edges[off + 1] = (qx - px) * sign;
+		edges[off + 2] = ((qy - py) * px - (qx - px) * py) * sign;
+	}
+}
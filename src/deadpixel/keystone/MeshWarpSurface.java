@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import processing.core.PApplet;
+
+/**
+ * A surface in which any mesh point can be a control point, for projecting
+ * onto surfaces that aren't quite flat.
+ *
+ * The four corners still define a perspective transform, as in
+ * CornerPinSurface. Every other control point pulls the mesh around it
+ * away from that transform: the offset between where it is and where the
+ * transform would put it is spread over its neighbours, fading out smoothly
+ * (with a Wendland kernel) over a radius of a few grid cells. Where several
+ * control points overlap, their offsets are averaged.
+ *
+ * Since each control point only reaches a limited distance, moving one only
+ * recalculates the mesh points within that distance, so dragging stays fast
+ * on dense meshes. Moving a corner changes the perspective transform, and
+ * recalculates everything.
+ */
+public class MeshWarpSurface extends CornerPinSurface {
+
+	// radius of influence of the interior control points, in grid cells
+	int influence;
+
+	// the corners' perspective transform, kept for partial updates
+	Homography homography;
+
+	// Grid cells that need to be recalculated, inclusive, and whether they
+	// are all that changed. None of these are initialized in their
+	// declaration, since the superclass constructor already calculates the
+	// mesh once.
+	boolean full;
+	boolean regionDirty;
+	int regionX0, regionY0, regionX1, regionY1;
+
+	MeshWarpSurface(PApplet parent, int w, int h, int res) {
+		super(parent, w, h, res);
+		influence = Math.max(2, (this.res - 1) / 4);
+	}
+
+	/**
+	 * Makes any point of the mesh a control point, or turns it back into a
+	 * regular point. Points are numbered row by row, from the top left
+	 * corner; the corners always remain control points.
+	 */
+	public void setControlPoint(int i, boolean cp) {
+		if (i == tl || i == tr || i == bl || i == br)
+			return;
+		super.setControlPoint(i, cp);
+	}
+
+	/**
+	 * Makes the mesh point at the given column and row a control point.
+	 */
+	public MeshPoint addControlPoint(int col, int row) {
+		int i = col + row * res;
+		setControlPoint(i, true);
+		return getMeshPoint(i);
+	}
+
+	/**
+	 * Sets how far, in grid cells, each control point pulls the mesh
+	 * around it. The default is a quarter of the grid.
+	 */
+	public void setInfluence(int cells) {
+		editLock.lock();
+		try {
+			influence = Math.max(1, cells);
+			invalidateMesh();
+		} finally {
+			editLock.unlock();
+		}
+	}
+
+	public int getInfluence() {
+		return influence;
+	}
+
+	void invalidateMesh() {
+		full = true;
+		super.invalidateMesh();
+	}
+
+	void invalidatePoint(int i) {
+		if (i == tl || i == tr || i == bl || i == br) {
+			invalidateMesh();
+			return;
+		}
+
+		int col = i % res;
+		int row = i / res;
+		int x0 = Math.max(0, col - influence);
+		int y0 = Math.max(0, row - influence);
+		int x1 = Math.min(res - 1, col + influence);
+		int y1 = Math.min(res - 1, row + influence);
+		if (regionDirty) {
+			regionX0 = Math.min(regionX0, x0);
+			regionY0 = Math.min(regionY0, y0);
+			regionX1 = Math.max(regionX1, x1);
+			regionY1 = Math.max(regionY1, y1);
+		} else {
+			regionX0 = x0;
+			regionY0 = y0;
+			regionX1 = x1;
+			regionY1 = y1;
+			regionDirty = true;
+		}
+
+		meshDirty = true;
+		if (grid != null)
+			grid.invalidate(this);
+	}
+
+	/**
+	 * Recalculates the mesh points that moved since the last calculation:
+	 * everything if a corner moved, otherwise only the neighbourhood of the
+	 * control points that changed.
+	 */
+	protected void calculateMesh() {
+		meshDirty = false;
+
+		int x0 = regionX0, y0 = regionY0, x1 = regionX1, y1 = regionY1;
+		if (full || !regionDirty || homography == null) {
+			homography = new Homography();
+			homography.setQuadToQuad(0, 0, w, 0, w, h, 0, h, meshX[tl],
+					meshY[tl], meshX[tr], meshY[tr], meshX[br], meshY[br],
+					meshX[bl], meshY[bl]);
+			x0 = 0;
+			y0 = 0;
+			x1 = res - 1;
+			y1 = res - 1;
+		}
+		full = false;
+		regionDirty = false;
+
+		double xStep = (double) w / (res - 1);
+		double yStep = (double) h / (res - 1);
+		double[] point = new double[2];
+
+		// offsets of the interior control points that can reach the region
+		int count = controlPoints.cardinality();
+		int[] cCol = new int[count];
+		int[] cRow = new int[count];
+		float[] cDX = new float[count];
+		float[] cDY = new float[count];
+		int n = 0;
+		for (int i = controlPoints.nextSetBit(0); i >= 0; i = controlPoints
+				.nextSetBit(i + 1)) {
+			int col = i % res;
+			int row = i / res;
+			if (i == tl || i == tr || i == bl || i == br
+					|| col < x0 - influence || col > x1 + influence
+					|| row < y0 - influence || row > y1 + influence)
+				continue;
+			homography.transform(col * xStep, row * yStep, point);
+			cCol[n] = col;
+			cRow[n] = row;
+			cDX[n] = meshX[i] - (float) point[0];
+			cDY[n] = meshY[i] - (float) point[1];
+			n++;
+		}
+
+		float invRadius = 1f / influence;
+		for (int row = y0; row <= y1; row++) {
+			for (int col = x0; col <= x1; col++) {
+				int i = col + row * res;
+				if (controlPoints.get(i))
+					continue;
+
+				float dx = 0, dy = 0, sum = 0;
+				for (int k = 0; k < n; k++) {
+					int du = col - cCol[k];
+					int dv = row - cRow[k];
+					float r = (float) Math.sqrt(du * du + dv * dv) * invRadius;
+					if (r >= 1)
+						continue;
+					float a = 1 - r;
+					float weight = a * a * a * a * (4 * r + 1);
+					dx += weight * cDX[k];
+					dy += weight * cDY[k];
+					sum += weight;
+				}
+				if (sum > 1) {
+					dx /= sum;
+					dy /= sum;
+				}
+
+				homography.transform(col * xStep, row * yStep, point);
+				meshX[i] = (float) point[0] + dx;
+				meshY[i] = (float) point[1] + dy;
+			}
+		}
+
+		publishMesh(homography);
+	}
+}
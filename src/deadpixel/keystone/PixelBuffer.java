@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * A source image that lives in an NIO buffer, typically a direct buffer
+ * filled by a video capture or decoding library, for SoftwareWarp. The warp
+ * reads the pixels straight from the buffer, so frames don't have to be
+ * copied into a PImage first.
+ *
+ * The buffer is wrapped, not copied: a PixelBuffer can be created once and
+ * reused for every frame that is decoded into the same memory. Rows can be
+ * padded, as many decoders do, by giving a stride larger than the width.
+ */
+public class PixelBuffer {
+
+	/**
+	 * 32 bit pixels, 0xAARRGGBB as an int, as in PImage. In a ByteBuffer,
+	 * the bytes are A, R, G, B.
+	 */
+	public static final int ARGB = 0;
+
+	/**
+	 * 32 bit pixels with the bytes in B, G, R, A order, which is ARGB on
+	 * little-endian machines; what most decoders call BGRA or BGRx.
+	 */
+	public static final int BGRA = 1;
+
+	/**
+	 * 32 bit pixels with the bytes in R, G, B, A order.
+	 */
+	public static final int RGBA = 2;
+
+	/**
+	 * 24 bit pixels with the bytes in R, G, B order.
+	 */
+	public static final int RGB = 3;
+
+	public final int width;
+	public final int height;
+	public final int format;
+
+	// 32 bit formats are read as ints, rotated into ARGB
+	final IntBuffer ints;
+	final int rotate;
+
+	// 24 bit formats are read byte by byte
+	final ByteBuffer bytes;
+
+	// in ints for 32 bit formats, in bytes otherwise
+	final int stride;
+
+	// or'ed into every pixel read
+	int alpha;
+
+	/**
+	 * Wraps a buffer of ARGB ints, starting at its current position. The
+	 * stride is the distance from one row to the next, in pixels.
+	 */
+	public PixelBuffer(IntBuffer pixels, int width, int height, int stride) {
+		checkSize(width, height, stride, width, pixels.remaining());
+		this.width = width;
+		this.height = height;
+		this.format = ARGB;
+		this.ints = pixels.slice();
+		this.rotate = 0;
+		this.bytes = null;
+		this.stride = stride;
+	}
+
+	/**
+	 * Wraps a buffer of ARGB ints with no padding between rows.
+	 */
+	public PixelBuffer(IntBuffer pixels, int width, int height) {
+		this(pixels, width, height, width);
+	}
+
+	/**
+	 * Wraps a buffer of bytes in the given format (ARGB, BGRA, RGBA or RGB),
+	 * starting at its current position. The stride is the distance from one
+	 * row to the next, in bytes; for 32 bit formats it must be a multiple of
+	 * 4.
+	 */
+	public PixelBuffer(ByteBuffer pixels, int width, int height, int stride,
+			int format) {
+		this.width = width;
+		this.height = height;
+		this.format = format;
+		ByteBuffer data = pixels.slice();
+		switch (format) {
+		case ARGB:
+		case BGRA:
+		case RGBA:
+			if (stride % 4 != 0)
+				throw new IllegalArgumentException(
+						"The stride of a 32 bit image must be a multiple of 4");
+			checkSize(width, height, stride, width * 4, data.remaining());
+			// BGRA read little-endian and ARGB read big-endian come out as
+			// ARGB; RGBA read big-endian is ARGB rotated left by 8 bits
+			data.order(format == BGRA ? ByteOrder.LITTLE_ENDIAN
+					: ByteOrder.BIG_ENDIAN);
+			this.ints = data.asIntBuffer();
+			this.rotate = format == RGBA ? 8 : 0;
+			this.bytes = null;
+			this.stride = stride / 4;
+			break;
+		case RGB:
+			checkSize(width, height, stride, width * 3, data.remaining());
+			this.ints = null;
+			this.rotate = 0;
+			this.bytes = data;
+			this.stride = stride;
+			this.alpha = 0xFF000000;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown pixel format "
+					+ format);
+		}
+	}
+
+	/**
+	 * Wraps a buffer of bytes in the given format with no padding between
+	 * rows.
+	 */
+	public PixelBuffer(ByteBuffer pixels, int width, int height, int format) {
+		this(pixels, width, height, width * (format == RGB ? 3 : 4), format);
+	}
+
+	private static void checkSize(int width, int height, int stride,
+			int rowSize, int available) {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Empty image");
+		if (stride < rowSize)
+			throw new IllegalArgumentException("The stride is shorter than a row");
+		if ((long) (height - 1) * stride + rowSize > available)
+			throw new IllegalArgumentException(
+					"The buffer is too small for the image");
+	}
+
+	/**
+	 * Treats every pixel as opaque, whatever its alpha byte says, for
+	 * formats like BGRx where that byte is padding.
+	 */
+	public void setOpaque(boolean opaque) {
+		alpha = opaque || format == RGB ? 0xFF000000 : 0;
+	}
+
+	/**
+	 * @return The pixel at (x, y), as ARGB
+	 */
+	public int get(int x, int y) {
+		if (ints != null)
+			return Integer.rotateRight(ints.get(y * stride + x), rotate)
+					| alpha;
+		int i = y * stride + x * 3;
+		return alpha | (bytes.get(i) & 0xFF) << 16
+				| (bytes.get(i + 1) & 0xFF) << 8 | (bytes.get(i + 2) & 0xFF);
+	}
+
+	/**
+	 * Blends the 2x2 pixels at (ix, iy) with 8 bit weights; the right and
+	 * bottom neighbours are clamped to the image.
+	 */
+	int blend(int ix, int iy, int fx, int fy) {
+		if (ints != null) {
+			// the common case, kept free of per-pixel multiplications
+			int i = iy * stride + ix;
+			int dx = ix < width - 1 ? 1 : 0;
+			int dy = iy < height - 1 ? stride : 0;
+			IntBuffer px = ints;
+			int c00 = px.get(i), c10 = px.get(i + dx);
+			int c01 = px.get(i + dy), c11 = px.get(i + dy + dx);
+			if (rotate != 0) {
+				c00 = Integer.rotateRight(c00, rotate);
+				c10 = Integer.rotateRight(c10, rotate);
+				c01 = Integer.rotateRight(c01, rotate);
+				c11 = Integer.rotateRight(c11, rotate);
+			}
+			return SoftwareWarp.blend(c00, c10, c01, c11, fx, fy) | alpha;
+		}
+		int nx = ix < width - 1 ? ix + 1 : ix;
+		int ny = iy < height - 1 ? iy + 1 : iy;
+		return SoftwareWarp.blend(get(ix, iy), get(nx, iy), get(ix, ny),
+				get(nx, ny), fx, fy);
+	}
+
+	/**
+	 * Bilinear sampling, with the coordinates clamped to the edges of the
+	 * image, like SoftwareWarp.sample().
+	 */
+	int sample(float x, float y) {
+		if (x < 0)
+			x = 0;
+		else if (x > width - 1)
+			x = width - 1;
+		if (y < 0)
+			y = 0;
+		else if (y > height - 1)
+			y = height - 1;
+
+		int ix = (int) x;
+		int iy = (int) y;
+		return blend(ix, iy, (int) ((x - ix) * 256), (int) ((y - iy) * 256));
+	}
+}
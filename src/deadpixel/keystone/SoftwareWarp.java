@@ -0,0 +1,542 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import processing.core.PImage;
+
+/**
+ * Warps images on the CPU, without any help from the graphics card. This is
+ * meant for renderers that can't do texture mapping (JAVA2D), for headless
+ * render nodes and for producing reference output in tests.
+ *
+ * Each destination pixel covered by a surface is mapped back through the
+ * surface's perspective transform and the source is sampled bilinearly, so
+ * the result is perspective-correct regardless of the mesh resolution.
+ * Destination pixels outside of the surface are left untouched. The work is
+ * split into bands of scanlines which are processed in parallel.
+ *
+ * The source can be a PImage, a pixel array or a PixelBuffer, which reads
+ * video frames straight from the NIO buffers they were decoded into.
+ *
+ * For sources that mostly stay the same from one frame to the next, the
+ * renderDirty() methods only warp again the parts of the destination that
+ * the changed areas of the source map to.
+ *
+ * Pixel arrays are warped by a vectorized kernel when the JVM supports it
+ * (see isVectorized()).
+ */
+public class SoftwareWarp {
+
+	// number of scanlines below which a band is not split any further
+	static final int BAND_HEIGHT = 16;
+
+	// shared between all instances created with the default constructor
+	private static ForkJoinPool sharedPool;
+
+	ForkJoinPool pool;
+
+	/**
+	 * Creates a software warp that runs on a pool shared by all default
+	 * instances, with one thread per available processor.
+	 */
+	public SoftwareWarp() {
+		this.pool = getSharedPool();
+	}
+
+	/**
+	 * Creates a software warp with its own pool of the given number of
+	 * threads.
+	 */
+	public SoftwareWarp(int threads) {
+		this.pool = new ForkJoinPool(threads);
+	}
+
+	/**
+	 * @return true if pixel arrays are warped with the Vector API kernel,
+	 *         which needs Java 16 or later, the keystone-vector jar and the
+	 *         --add-modules jdk.incubator.vector option
+	 */
+	public static boolean isVectorized() {
+		return !(WarpKernel.current instanceof WarpKernel.Scalar);
+	}
+
+	private static synchronized ForkJoinPool getSharedPool() {
+		if (sharedPool == null)
+			sharedPool = new ForkJoinPool();
+		return sharedPool;
+	}
+
+	/**
+	 * Warps the source image onto the surface, into the destination image.
+	 * Like CornerPinSurface.render(texture), this shows the top left w x h
+	 * pixels of the source, w and h being the surface's size.
+	 */
+	public void render(CornerPinSurface surface, PImage src, PImage dst) {
+		render(surface, src, 0, 0, surface.w, surface.h, dst);
+	}
+
+	/**
+	 * Warps a section of the source image onto the surface, into the
+	 * destination image. The tX, tY, tW and tH parameters specify which
+	 * section of the image to render onto this surface, like they do for
+	 * CornerPinSurface.render().
+	 */
+	public void render(CornerPinSurface surface, PImage src, int tX, int tY,
+			int tW, int tH, PImage dst) {
+		src.loadPixels();
+		dst.loadPixels();
+		render(surface, src.pixels, src.width, src.height, tX, tY, tW, tH,
+				dst.pixels, dst.width, dst.height);
+		dst.updatePixels();
+	}
+
+	/**
+	 * Warps a section of an ARGB pixel array onto the surface, into another
+	 * pixel array. The source and destination must not be the same array.
+	 */
+	public void render(CornerPinSurface surface, int[] src, int srcW,
+			int srcH, int tX, int tY, int tW, int tH, int[] dst, int dstW,
+			int dstH) {
+		render(new WarpJob(surface, src, null, srcW, srcH, tX, tY, tW, tH,
+				dst, dstW, dstH));
+	}
+
+	/**
+	 * Warps a buffered image onto the surface, into the destination image.
+	 * Like CornerPinSurface.render(texture), this shows the top left w x h
+	 * pixels of the source, w and h being the surface's size.
+	 */
+	public void render(CornerPinSurface surface, PixelBuffer src, PImage dst) {
+		render(surface, src, 0, 0, surface.w, surface.h, dst);
+	}
+
+	/**
+	 * Warps a section of a buffered image onto the surface, into the
+	 * destination image. The pixels are read from the buffer as they are
+	 * needed, without copying it.
+	 */
+	public void render(CornerPinSurface surface, PixelBuffer src, int tX,
+			int tY, int tW, int tH, PImage dst) {
+		dst.loadPixels();
+		render(surface, src, tX, tY, tW, tH, dst.pixels, dst.width, dst.height);
+		dst.updatePixels();
+	}
+
+	/**
+	 * Warps a section of a buffered image onto the surface, into a pixel
+	 * array.
+	 */
+	public void render(CornerPinSurface surface, PixelBuffer src, int tX,
+			int tY, int tW, int tH, int[] dst, int dstW, int dstH) {
+		render(new WarpJob(surface, null, src, src.width, src.height, tX, tY,
+				tW, tH, dst, dstW, dstH));
+	}
+
+	/**
+	 * Warps only the parts of the source that changed since the last frame
+	 * into a destination that holds the previous frame. The dirty array holds
+	 * the changed rectangles, in source pixels, as (x, y, w, h) quadruples.
+	 * 
+	 * The whole section is warped instead the first time, and whenever the
+	 * surface, the section or the destination changed since the last call,
+	 * so the destination must not be cleared or drawn over in between.
+	 */
+	public void renderDirty(CornerPinSurface surface, PImage src, int tX,
+			int tY, int tW, int tH, int[] dirty, PImage dst) {
+		src.loadPixels();
+		dst.loadPixels();
+		renderDirty(surface, src.pixels, src.width, src.height, tX, tY, tW, tH,
+				dirty, dst.pixels, dst.width, dst.height);
+		dst.updatePixels();
+	}
+
+	/**
+	 * Warps the changed rectangles of an ARGB pixel array, like
+	 * renderDirty(CornerPinSurface, PImage, int, int, int, int, int[],
+	 * PImage).
+	 */
+	public void renderDirty(CornerPinSurface surface, int[] src, int srcW,
+			int srcH, int tX, int tY, int tW, int tH, int[] dirty, int[] dst,
+			int dstW, int dstH) {
+		renderDirty(new WarpJob(surface, src, null, srcW, srcH, tX, tY, tW, tH,
+				dst, dstW, dstH), dirty);
+	}
+
+	/**
+	 * Warps the changed rectangles of a buffered image, like
+	 * renderDirty(CornerPinSurface, PImage, int, int, int, int, int[],
+	 * PImage).
+	 */
+	public void renderDirty(CornerPinSurface surface, PixelBuffer src, int tX,
+			int tY, int tW, int tH, int[] dirty, int[] dst, int dstW, int dstH) {
+		renderDirty(new WarpJob(surface, null, src, src.width, src.height, tX,
+				tY, tW, tH, dst, dstW, dstH), dirty);
+	}
+
+	private void render(WarpJob job) {
+		if (job.y1 <= job.y0)
+			return;
+		pool.invoke(new Band(rows(job, job.x0, job.x1), job.y0, job.y1));
+	}
+
+	private void renderDirty(WarpJob job, int[] dirty) {
+		CornerPinSurface surface = job.surface;
+		Warped warped = surface.warped;
+		if (warped == null || !warped.matches(job)) {
+			render(job);
+			if (warped == null) {
+				warped = new Warped();
+				surface.warped = warped;
+			}
+			warped.record(job);
+			return;
+		}
+
+		int[] bounds = new int[4];
+		for (int i = 0; i + 3 < dirty.length; i += 4) {
+			if (!job.dirtyBounds(dirty[i], dirty[i + 1], dirty[i + 2],
+					dirty[i + 3], bounds))
+				continue;
+			pool.invoke(new Band(rows(job, bounds[0], bounds[2]), bounds[1],
+					bounds[3]));
+		}
+	}
+
+	/**
+	 * @return Something that warps the columns from rx0 (inclusive) to rx1
+	 *         (exclusive) of the job, using the surface's lookup table if it
+	 *         has one
+	 */
+	private static RowJob rows(final WarpJob job, final int rx0, final int rx1) {
+		CornerPinSurface surface = job.surface;
+		if (surface.lookupTableEnabled) {
+			WarpTable table = surface.lookupTable;
+			if (table == null) {
+				table = new WarpTable();
+				surface.lookupTable = table;
+			}
+			if (!table.matches(job))
+				table.build(job, surface.lookupTableMaxBytes);
+			if (!table.empty)
+				return table.gather(job.src, job.buffer, job.dst, rx0, rx1);
+		}
+		if (rx0 == job.x0 && rx1 == job.x1)
+			return job;
+		return new RowJob() {
+			public void warpRows(int rowStart, int rowEnd) {
+				job.warpRect(rx0, rx1, rowStart, rowEnd);
+			}
+		};
+	}
+
+	/**
+	 * Something that processes the destination image one range of scanlines
+	 * at a time, from any thread.
+	 */
+	interface RowJob {
+		void warpRows(int rowStart, int rowEnd);
+	}
+
+	/**
+	 * Everything needed to warp one surface, captured on the calling thread
+	 * so that the worker threads never look at the surface itself.
+	 */
+	static class WarpJob implements RowJob {
+
+		final CornerPinSurface surface;
+
+		// the source is either an array or a buffer
+		final int[] src;
+		final PixelBuffer buffer;
+		final int srcW;
+		final int srcH;
+		final int[] dst;
+		final int dstW;
+		final int dstH;
+
+		// source section
+		final int tX, tY, tW, tH;
+
+		// destination bounds, clipped to the destination image
+		final int x0, y0, x1, y1;
+
+		// version of the mesh snapshot the job was captured from
+		final int meshVersion;
+
+		// surface to screen offset
+		final double offX, offY;
+
+		// surface size
+		final double w, h;
+
+		// the surface's perspective transform, from (u,v) to its corners
+		final Homography homography;
+
+		// surface (u,v) to source pixel mapping
+		final double uScale, vScale, uOffset, vOffset;
+
+		// inverse transform, from the surface's corners to its (u,v) space
+		final double[] inv = new double[9];
+
+		WarpJob(CornerPinSurface s, int[] src, PixelBuffer buffer, int srcW,
+				int srcH, int tX, int tY, int tW, int tH, int[] dst, int dstW,
+				int dstH) {
+			MeshSnapshot m = s.snapshot();
+			this.meshVersion = m.version;
+
+			this.surface = s;
+			this.src = src;
+			this.buffer = buffer;
+			this.srcW = srcW;
+			this.srcH = srcH;
+			this.dst = dst;
+			this.dstW = dstW;
+			this.dstH = dstH;
+			this.tX = tX;
+			this.tY = tY;
+			this.tW = tW;
+			this.tH = tH;
+
+			this.offX = m.x;
+			this.offY = m.y;
+			this.w = s.w;
+			this.h = s.h;
+			this.homography = m.homography;
+			System.arraycopy(m.homography.inv, 0, inv, 0, 9);
+
+			this.uScale = (double) tW / s.w;
+			this.vScale = (double) tH / s.h;
+			// bilinear sampling works on pixel centers
+			this.uOffset = tX - 0.5;
+			this.vOffset = tY - 0.5;
+
+			float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+			float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+			int[] corners = { s.tl, s.tr, s.br, s.bl };
+			for (int c : corners) {
+				minX = Math.min(minX, m.meshX[c]);
+				minY = Math.min(minY, m.meshY[c]);
+				maxX = Math.max(maxX, m.meshX[c]);
+				maxY = Math.max(maxY, m.meshY[c]);
+			}
+			this.x0 = Math.max(0, (int) Math.floor(minX + m.x));
+			this.y0 = Math.max(0, (int) Math.floor(minY + m.y));
+			this.x1 = Math.min(dstW, (int) Math.ceil(maxX + m.x) + 1);
+			this.y1 = Math.min(dstH, (int) Math.ceil(maxY + m.y) + 1);
+		}
+
+		/**
+		 * Warps the scanlines from rowStart (inclusive) to rowEnd (exclusive).
+		 */
+		public void warpRows(int rowStart, int rowEnd) {
+			warpRect(x0, x1, rowStart, rowEnd);
+		}
+
+		/**
+		 * Warps the columns from rx0 to rx1 of the given scanlines.
+		 */
+		void warpRect(int rx0, int rx1, int rowStart, int rowEnd) {
+			if (buffer == null) {
+				WarpKernel kernel = WarpKernel.current;
+				for (int py = rowStart; py < rowEnd; py++)
+					kernel.warpRow(this, py, rx0, rx1);
+				return;
+			}
+
+			double a0 = inv[0], a1 = inv[1], a2 = inv[2];
+			double a3 = inv[3], a4 = inv[4], a5 = inv[5];
+			double a6 = inv[6], a7 = inv[7], a8 = inv[8];
+
+			for (int py = rowStart; py < rowEnd; py++) {
+				// the numerators and denominator are linear along a scanline,
+				// so only the division is left for every pixel
+				double lx = rx0 + 0.5 - offX;
+				double ly = py + 0.5 - offY;
+				double nu = a0 * lx + a1 * ly + a2;
+				double nv = a3 * lx + a4 * ly + a5;
+				double nw = a6 * lx + a7 * ly + a8;
+
+				int index = py * dstW + rx0;
+				for (int px = rx0; px < rx1; px++, index++) {
+					double iw = 1 / nw;
+					double u = nu * iw;
+					double v = nv * iw;
+					nu += a0;
+					nv += a3;
+					nw += a6;
+
+					if (u < 0 || v < 0 || u >= w || v >= h)
+						continue;
+
+					dst[index] = buffer.sample((float) (u * uScale + uOffset),
+							(float) (v * vScale + vOffset));
+				}
+			}
+		}
+
+		/**
+		 * Finds the destination pixels that sample the source rectangle (sx,
+		 * sy, sw, sh), and stores their bounds, as x0, y0, x1 and y1, in out.
+		 * 
+		 * @return false if there are none
+		 */
+		boolean dirtyBounds(int sx, int sy, int sw, int sh, int[] out) {
+			// a source pixel is blended into the samples up to one pixel
+			// away from its center
+			double u0 = Math.max(0, (sx - 1 - uOffset) / uScale);
+			double v0 = Math.max(0, (sy - 1 - vOffset) / vScale);
+			double u1 = Math.min(w, (sx + sw - uOffset) / uScale);
+			double v1 = Math.min(h, (sy + sh - vOffset) / vScale);
+			if (sw <= 0 || sh <= 0 || u0 >= u1 || v0 >= v1)
+				return false;
+
+			// the transform keeps lines straight, so the rectangle maps to a
+			// quad that lies within the bounds of its corners
+			double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+			double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+			double[] point = new double[2];
+			for (int c = 0; c < 4; c++) {
+				homography.transform(c == 0 || c == 3 ? u0 : u1, c < 2 ? v0
+						: v1, point);
+				minX = Math.min(minX, point[0]);
+				minY = Math.min(minY, point[1]);
+				maxX = Math.max(maxX, point[0]);
+				maxY = Math.max(maxY, point[1]);
+			}
+			out[0] = Math.max(x0, (int) Math.floor(minX + offX) - 1);
+			out[1] = Math.max(y0, (int) Math.floor(minY + offY) - 1);
+			out[2] = Math.min(x1, (int) Math.ceil(maxX + offX) + 1);
+			out[3] = Math.min(y1, (int) Math.ceil(maxY + offY) + 1);
+			return out[0] < out[2] && out[1] < out[3];
+		}
+	}
+
+	/**
+	 * What renderDirty() last warped completely for a surface. Until any of
+	 * it changes, the destination holds the whole warped section and only
+	 * dirty areas need to be warped again.
+	 */
+	static class Warped {
+
+		int[] dst;
+		int dstW, dstH;
+		int meshVersion;
+		double offX, offY;
+		int srcW, srcH;
+		int tX, tY, tW, tH;
+
+		boolean matches(WarpJob job) {
+			return dst == job.dst && dstW == job.dstW && dstH == job.dstH
+					&& meshVersion == job.meshVersion && offX == job.offX
+					&& offY == job.offY && srcW == job.srcW
+					&& srcH == job.srcH && tX == job.tX && tY == job.tY
+					&& tW == job.tW && tH == job.tH;
+		}
+
+		void record(WarpJob job) {
+			dst = job.dst;
+			dstW = job.dstW;
+			dstH = job.dstH;
+			meshVersion = job.meshVersion;
+			offX = job.offX;
+			offY = job.offY;
+			srcW = job.srcW;
+			srcH = job.srcH;
+			tX = job.tX;
+			tY = job.tY;
+			tW = job.tW;
+			tH = job.tH;
+		}
+	}
+
+	/**
+	 * A band of scanlines, split in two until it is small enough.
+	 */
+	static class Band extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final RowJob job;
+		final int y0;
+		final int y1;
+
+		Band(RowJob job, int y0, int y1) {
+			this.job = job;
+			this.y0 = y0;
+			this.y1 = y1;
+		}
+
+		@Override
+		protected void compute() {
+			if (y1 - y0 <= BAND_HEIGHT) {
+				job.warpRows(y0, y1);
+			} else {
+				int mid = (y0 + y1) >>> 1;
+				invokeAll(new Band(job, y0, mid), new Band(job, mid, y1));
+			}
+		}
+	}
+
+	/**
+	 * Bilinear sampling of an ARGB pixel array, with the coordinates clamped
+	 * to the edges of the image.
+	 */
+	static int sample(int[] px, int pw, int ph, float x, float y) {
+		if (x < 0)
+			x = 0;
+		else if (x > pw - 1)
+			x = pw - 1;
+		if (y < 0)
+			y = 0;
+		else if (y > ph - 1)
+			y = ph - 1;
+
+		int ix = (int) x;
+		int iy = (int) y;
+		// 8 bit weights
+		int fx = (int) ((x - ix) * 256);
+		int fy = (int) ((y - iy) * 256);
+
+		int i = iy * pw + ix;
+		int dx = ix < pw - 1 ? 1 : 0;
+		int dy = iy < ph - 1 ? pw : 0;
+
+		return blend(px[i], px[i + dx], px[i + dy], px[i + dy + dx], fx, fy);
+	}
+
+	/**
+	 * Blends four ARGB pixels with 8 bit horizontal and vertical weights.
+	 */
+	static int blend(int c00, int c10, int c01, int c11, int fx, int fy) {
+		return lerp(lerp(c00, c10, fx), lerp(c01, c11, fx), fy);
+	}
+
+	/**
+	 * Interpolates between two ARGB pixels with an 8 bit weight. Red and blue
+	 * are processed together, then alpha and green.
+	 */
+	static int lerp(int a, int b, int f) {
+		int g = 256 - f;
+		int rb = (((a & 0xFF00FF) * g + (b & 0xFF00FF) * f) >>> 8) & 0xFF00FF;
+		int ag = (((a >>> 8) & 0xFF00FF) * g + ((b >>> 8) & 0xFF00FF) * f) & 0xFF00FF00;
+		return ag | rb;
+	}
+}
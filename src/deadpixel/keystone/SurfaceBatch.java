@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.util.List;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+/**
+ * The tiles of all of a Keystone's surfaces in a single vertex stream, so
+ * that surfaces that all show sections of the same texture are drawn with
+ * one shape and one texture bind, instead of one of each per surface.
+ *
+ * The positions are translated to the screen in advance, and the surfaces
+ * are laid out in stacking order, so later surfaces still draw over
+ * earlier ones. Each surface's part of the stream is only rewritten when
+ * its position or its own vertex stream changed since the last frame.
+ */
+class SurfaceBatch {
+
+	// (x, y, u, v) for each vertex, screen positions
+	float[] vertices;
+	int length;
+
+	// the surfaces in the batch, the snapshot and vertex stream each one's
+	// part of the batch was copied from, and where that part starts
+	CornerPinSurface[] members;
+	MeshSnapshot[] built;
+	int[] stamps;
+	int[] offsets;
+
+	/**
+	 * Brings the stream up to date with the surfaces.
+	 */
+	void update(List<CornerPinSurface> surfaces) {
+		int n = surfaces.size();
+		boolean full = members == null || members.length != n;
+		for (int i = 0; !full && i < n; i++)
+			full = members[i] != surfaces.get(i);
+		if (full) {
+			members = surfaces.toArray(new CornerPinSurface[n]);
+			built = new MeshSnapshot[n];
+			stamps = new int[n];
+			offsets = new int[n + 1];
+		}
+
+		for (int i = 0; i < n; i++) {
+			CornerPinSurface s = members[i];
+			MeshSnapshot m = s.snapshot();
+			// rebuilds the surface's own stream if its mesh or section changed
+			int size = s.vertexStream(m, s.sectionX, s.sectionY, s.sectionW,
+					s.sectionH);
+			if (!full && m == built[i] && s.verticesStamp == stamps[i])
+				continue;
+
+			if (!full && size != offsets[i + 1] - offsets[i]) {
+				// the surface's tile count changed, lay everything out again
+				full = true;
+				i = -1;
+				continue;
+			}
+
+			if (full) {
+				offsets[i + 1] = offsets[i] + size;
+				if (vertices == null || vertices.length < offsets[i + 1]) {
+					float[] grown = new float[Math.max(offsets[i + 1],
+							vertices == null ? 0 : vertices.length * 2)];
+					if (vertices != null)
+						System.arraycopy(vertices, 0, grown, 0, offsets[i]);
+					vertices = grown;
+				}
+			}
+
+			float[] src = s.vertices;
+			int o = offsets[i];
+			for (int j = 0; j < size; j += 4) {
+				vertices[o + j] = src[j] + m.x;
+				vertices[o + j + 1] = src[j + 1] + m.y;
+				vertices[o + j + 2] = src[j + 2];
+				vertices[o + j + 3] = src[j + 3];
+			}
+
+			built[i] = m;
+			stamps[i] = s.verticesStamp;
+		}
+		length = offsets[n];
+	}
+
+	void render(PGraphics g, PImage texture) {
+		for (CornerPinSurface s : members)
+			s.recordSection(texture, s.sectionX, s.sectionY, s.sectionW,
+					s.sectionH);
+
+		g.noStroke();
+		g.fill(255);
+		g.beginShape(PApplet.QUADS);
+		g.texture(texture);
+		float[] vs = vertices;
+		for (int i = 0; i < length; i += 4)
+			g.vertex(vs[i], vs[i + 1], vs[i + 2], vs[i + 3]);
+		g.endShape(PApplet.CLOSE);
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A uniform grid over the screen, used by Keystone to find which surfaces
+ * may be under the mouse without testing all of them. Each cell lists the
+ * surfaces whose bounding box (grown by the control point pick radius)
+ * overlaps it, in stacking order.
+ *
+ * Surfaces report themselves through invalidate() whenever they move or
+ * their corners change, from any thread; they are re-inserted lazily, on
+ * the next query. Since a surface's position fields are public and can be
+ * assigned without going through setPosition(), they are also compared with
+ * the position each surface was indexed at, once per frame (see
+ * checkPositions()) and whenever the surface is drawn; queries themselves
+ * only look at the nearby surfaces.
+ */
+class SurfaceGrid {
+
+	// cell size, in pixels
+	static final int CELL_SIZE = 128;
+
+	HashMap<Long, ArrayList<CornerPinSurface>> cells;
+
+	// the cell range each surface is currently listed under
+	IdentityHashMap<CornerPinSurface, Range> ranges;
+
+	// surfaces add themselves from whichever thread edits them
+	Set<CornerPinSurface> dirty;
+
+	SurfaceGrid() {
+		cells = new HashMap<Long, ArrayList<CornerPinSurface>>();
+		ranges = new IdentityHashMap<CornerPinSurface, Range>();
+		dirty = Collections
+				.newSetFromMap(new ConcurrentHashMap<CornerPinSurface, Boolean>());
+	}
+
+	/**
+	 * Marks a surface as moved; it will be re-inserted before the next query.
+	 */
+	void invalidate(CornerPinSurface s) {
+		dirty.add(s);
+	}
+
+	void clear() {
+		cells.clear();
+		ranges.clear();
+		dirty.clear();
+	}
+
+	/**
+	 * @return The surfaces that may contain the point (x, y), bottom-most
+	 *         first. The list must not be modified.
+	 */
+	List<CornerPinSurface> candidates(float x, float y) {
+		update();
+		ArrayList<CornerPinSurface> cell = cells.get(key(cell(x), cell(y)));
+		if (cell == null)
+			return Collections.emptyList();
+		return cell;
+	}
+
+	/**
+	 * Marks the surfaces whose position fields were assigned directly since
+	 * they were indexed. Called once per frame, from Keystone.pre().
+	 */
+	void checkPositions() {
+		for (Range range : ranges.values()) {
+			if (range.x != range.surface.x || range.y != range.surface.y)
+				dirty.add(range.surface);
+		}
+	}
+
+	/**
+	 * Re-inserts the surfaces that moved since the last query.
+	 */
+	void update() {
+		if (dirty.isEmpty())
+			return;
+		ArrayList<CornerPinSurface> moved = new ArrayList<CornerPinSurface>(
+				dirty);
+		dirty.removeAll(moved);
+		for (CornerPinSurface s : moved) {
+			remove(s);
+			insert(s);
+		}
+	}
+
+	private void insert(CornerPinSurface s) {
+		MeshSnapshot m = s.snapshot();
+		// another thread is still editing the surface, so the snapshot may
+		// be the previous one; look at it again on the next query
+		if (s.meshDirty)
+			dirty.add(s);
+		float r = CornerPinSurface.PICK_RADIUS;
+		Range range = new Range(s, m.x, m.y);
+		range.x0 = cell(m.x + m.minX - r);
+		range.y0 = cell(m.y + m.minY - r);
+		range.x1 = cell(m.x + m.maxX + r);
+		range.y1 = cell(m.y + m.maxY + r);
+		ranges.put(s, range);
+
+		for (int cy = range.y0; cy <= range.y1; cy++) {
+			for (int cx = range.x0; cx <= range.x1; cx++) {
+				Long key = key(cx, cy);
+				ArrayList<CornerPinSurface> cell = cells.get(key);
+				if (cell == null) {
+					cell = new ArrayList<CornerPinSurface>(4);
+					cells.put(key, cell);
+				}
+				// keep the cell in stacking order
+				int i = cell.size();
+				while (i > 0 && cell.get(i - 1).order > s.order)
+					i--;
+				cell.add(i, s);
+			}
+		}
+	}
+
+	private void remove(CornerPinSurface s) {
+		Range range = ranges.remove(s);
+		if (range == null)
+			return;
+
+		for (int cy = range.y0; cy <= range.y1; cy++) {
+			for (int cx = range.x0; cx <= range.x1; cx++) {
+				Long key = key(cx, cy);
+				ArrayList<CornerPinSurface> cell = cells.get(key);
+				if (cell == null)
+					continue;
+				cell.remove(s);
+				if (cell.isEmpty())
+					cells.remove(key);
+			}
+		}
+	}
+
+	private static int cell(float v) {
+		return (int) Math.floor(v / CELL_SIZE);
+	}
+
+	private static Long key(int cx, int cy) {
+		return Long.valueOf(((long) cx << 32) | (cy & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * The cells a surface is listed under, and the position it was at when
+	 * it was listed.
+	 */
+	static class Range {
+		final CornerPinSurface surface;
+		final float x, y;
+		int x0, y0, x1, y1;
+
+		Range(CornerPinSurface surface, float x, float y) {
+			this.surface = surface;
+			this.x = x;
+			this.y = y;
+		}
+	}
+}
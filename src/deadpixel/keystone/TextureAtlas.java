@@ -0,0 +1,374 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+/**
+ * Packs the contents shown by many surfaces into a few large offscreen
+ * pages, so that Keystone.renderSources() can draw all the surfaces on a
+ * page with one texture bind, however many there are.
+ *
+ * Contents are placed with a skyline bottom-left packer. Each one is
+ * surrounded by a one pixel gutter into which its edges are extruded, so
+ * that bilinear filtering at the edge of a surface doesn't pick up its
+ * neighbours on the page. Removed contents leave a hole until an allocation
+ * fails, at which point every page is repacked from scratch before another
+ * page is added.
+ *
+ * A content is copied to its page when it is placed, whenever it is a
+ * PGraphics (which is assumed to be drawn into every frame), and when it
+ * was modified since it was last used as a texture, which is what
+ * updatePixels() does to a PImage.
+ */
+class TextureAtlas {
+
+	static final int DEFAULT_PAGE_SIZE = 2048;
+
+	static final int GUTTER = 1;
+
+	final PApplet parent;
+
+	final int pageSize;
+
+	final ArrayList<Page> pages;
+
+	// set when a slot was removed since the pages were last packed
+	boolean holes;
+
+	// set when slots were added, moved or removed; the pages' surface lists
+	// are rebuilt before the next frame
+	boolean layoutChanged;
+
+	/**
+	 * Where a surface's content sits in the atlas.
+	 */
+	static class Slot {
+		final CornerPinSurface surface;
+		PImage content;
+		Page page;
+		int x, y;
+		boolean copied;
+
+		Slot(CornerPinSurface surface, PImage content) {
+			this.surface = surface;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * One offscreen image holding several contents.
+	 */
+	static class Page {
+		final int w, h;
+		final Skyline skyline;
+		final ArrayList<Slot> slots = new ArrayList<Slot>();
+
+		// the page's surfaces, in stacking order, and their batch
+		final ArrayList<CornerPinSurface> surfaces = new ArrayList<CornerPinSurface>();
+		final SurfaceBatch batch = new SurfaceBatch();
+
+		PGraphics g;
+		boolean cleared;
+
+		Page(int w, int h) {
+			this.w = w;
+			this.h = h;
+			this.skyline = new Skyline(w, h);
+		}
+	}
+
+	TextureAtlas(PApplet parent, int pageSize) {
+		this.parent = parent;
+		this.pageSize = pageSize;
+		this.pages = new ArrayList<Page>();
+	}
+
+	/**
+	 * Gives the surface a slot for the content, or reuses its current slot
+	 * if the content has the same size.
+	 */
+	void put(CornerPinSurface s, PImage content) {
+		Slot slot = s.atlasSlot;
+		if (slot != null && slot.content.width == content.width
+				&& slot.content.height == content.height) {
+			slot.content = content;
+			slot.copied = false;
+			return;
+		}
+		remove(s);
+
+		slot = new Slot(s, content);
+		if (!place(slot, pages)) {
+			if (holes)
+				repack();
+			if (!place(slot, pages)) {
+				int w = Math.max(pageSize, content.width + 2 * GUTTER);
+				int h = Math.max(pageSize, content.height + 2 * GUTTER);
+				Page page = new Page(w, h);
+				pages.add(page);
+				place(slot, Collections.singletonList(page));
+			}
+		}
+		s.atlasSlot = slot;
+		layoutChanged = true;
+	}
+
+	/**
+	 * Frees the surface's slot, if it has one.
+	 */
+	void remove(CornerPinSurface s) {
+		Slot slot = s.atlasSlot;
+		if (slot == null)
+			return;
+		slot.page.slots.remove(slot);
+		s.atlasSlot = null;
+		holes = true;
+		layoutChanged = true;
+	}
+
+	/**
+	 * Places the slot on the first of the pages that has room for it.
+	 * 
+	 * @return false if none does
+	 */
+	private static boolean place(Slot slot, List<Page> pages) {
+		int[] position = new int[2];
+		for (Page page : pages) {
+			if (page.skyline.insert(slot.content.width + 2 * GUTTER,
+					slot.content.height + 2 * GUTTER, position)) {
+				slot.page = page;
+				slot.x = position[0] + GUTTER;
+				slot.y = position[1] + GUTTER;
+				slot.copied = false;
+				page.slots.add(slot);
+				slot.surface.setTextureSection(slot.x, slot.y,
+						slot.content.width, slot.content.height);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Packs all the slots again, tallest first, which closes the holes left
+	 * by removed contents and drops the pages that end up empty.
+	 */
+	private void repack() {
+		ArrayList<Slot> all = new ArrayList<Slot>();
+		for (Page page : pages) {
+			all.addAll(page.slots);
+			page.slots.clear();
+			page.skyline.clear();
+			page.cleared = false;
+		}
+		Collections.sort(all, new Comparator<Slot>() {
+			public int compare(Slot a, Slot b) {
+				return b.content.height - a.content.height;
+			}
+		});
+		for (Slot slot : all) {
+			if (!place(slot, pages)) {
+				Page page = new Page(Math.max(pageSize, slot.content.width + 2
+						* GUTTER), Math.max(pageSize, slot.content.height + 2
+						* GUTTER));
+				pages.add(page);
+				place(slot, Collections.singletonList(page));
+			}
+		}
+		for (int i = pages.size() - 1; i >= 0; i--) {
+			Page page = pages.get(i);
+			if (page.slots.isEmpty()) {
+				if (page.g != null)
+					page.g.dispose();
+				pages.remove(i);
+			}
+		}
+		holes = false;
+	}
+
+	/**
+	 * Brings the pages up to date before drawing: sorts the surfaces by
+	 * page, and copies the contents that are new or have changed.
+	 */
+	void update(List<CornerPinSurface> surfaces) {
+		if (layoutChanged) {
+			for (Page page : pages)
+				page.surfaces.clear();
+			for (CornerPinSurface s : surfaces) {
+				if (s.atlasSlot != null)
+					s.atlasSlot.page.surfaces.add(s);
+			}
+			layoutChanged = false;
+		}
+
+		for (Page page : pages) {
+			boolean stale = page.g == null || !page.cleared;
+			for (int i = 0; !stale && i < page.slots.size(); i++)
+				stale = needsCopy(page.slots.get(i));
+			if (!stale)
+				continue;
+
+			if (page.g == null)
+				page.g = parent.createGraphics(page.w, page.h, PApplet.P2D);
+			PGraphics g = page.g;
+			g.beginDraw();
+			if (!page.cleared) {
+				g.clear();
+				page.cleared = true;
+				for (Slot slot : page.slots)
+					slot.copied = false;
+			}
+			g.blendMode(PApplet.REPLACE);
+			g.imageMode(PApplet.CORNER);
+			g.noTint();
+			for (Slot slot : page.slots) {
+				if (needsCopy(slot))
+					copy(g, slot);
+			}
+			g.endDraw();
+		}
+	}
+
+	private static boolean needsCopy(Slot slot) {
+		return !slot.copied || slot.content instanceof PGraphics
+				|| slot.content.isModified();
+	}
+
+	/**
+	 * Draws the content into its slot, with its edges extruded into the
+	 * gutter.
+	 */
+	private static void copy(PGraphics g, Slot slot) {
+		PImage content = slot.content;
+		g.image(content, slot.x - GUTTER, slot.y);
+		g.image(content, slot.x + GUTTER, slot.y);
+		g.image(content, slot.x, slot.y - GUTTER);
+		g.image(content, slot.x, slot.y + GUTTER);
+		g.image(content, slot.x, slot.y);
+		slot.copied = true;
+	}
+
+	/**
+	 * Releases the pages' offscreen images.
+	 */
+	void dispose() {
+		for (Page page : pages) {
+			if (page.g != null)
+				page.g.dispose();
+		}
+		pages.clear();
+	}
+
+	/**
+	 * A skyline rectangle packer: the top edge of everything placed so far is
+	 * kept as a list of horizontal segments, and each new rectangle goes
+	 * where its top ends up lowest.
+	 */
+	static class Skyline {
+
+		final int w, h;
+
+		// x, y and width of each segment, from left to right
+		final ArrayList<int[]> segments = new ArrayList<int[]>();
+
+		Skyline(int w, int h) {
+			this.w = w;
+			this.h = h;
+			clear();
+		}
+
+		void clear() {
+			segments.clear();
+			segments.add(new int[] { 0, 0, w });
+		}
+
+		/**
+		 * Finds room for a rw x rh rectangle and stores its top left corner
+		 * in position.
+		 * 
+		 * @return false if it doesn't fit
+		 */
+		boolean insert(int rw, int rh, int[] position) {
+			int best = -1;
+			int bestTop = Integer.MAX_VALUE;
+			int bestWidth = Integer.MAX_VALUE;
+			int bestY = 0;
+			for (int i = 0; i < segments.size(); i++) {
+				int[] segment = segments.get(i);
+				if (segment[0] + rw > w)
+					break;
+				// the rectangle rests on the highest segment under it
+				int y = 0;
+				for (int j = i, left = rw; left > 0; j++) {
+					int[] under = segments.get(j);
+					y = Math.max(y, under[1]);
+					left -= under[2];
+				}
+				if (y + rh > h)
+					continue;
+				if (y + rh < bestTop
+						|| (y + rh == bestTop && segment[2] < bestWidth)) {
+					best = i;
+					bestTop = y + rh;
+					bestWidth = segment[2];
+					bestY = y;
+				}
+			}
+			if (best == -1)
+				return false;
+
+			int x = segments.get(best)[0];
+			segments.add(best, new int[] { x, bestY + rh, rw });
+			// trim the segments now hidden under the rectangle
+			for (int i = best + 1; i < segments.size();) {
+				int[] segment = segments.get(i);
+				int overlap = x + rw - segment[0];
+				if (overlap <= 0)
+					break;
+				segment[0] += overlap;
+				segment[2] -= overlap;
+				if (segment[2] > 0)
+					break;
+				segments.remove(i);
+			}
+			// merge neighbours at the same height
+			for (int i = 0; i + 1 < segments.size();) {
+				int[] a = segments.get(i);
+				int[] b = segments.get(i + 1);
+				if (a[1] == b[1]) {
+					a[2] += b[2];
+					segments.remove(i + 1);
+				} else {
+					i++;
+				}
+			}
+
+			position[0] = x;
+			position[1] = bestY;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+/**
+ * The inner loops that map many points through a perspective transform:
+ * the mesh calculation, the batch cursor mapping and the software warp.
+ *
+ * The scalar implementation below is always available. When the library
+ * runs on Java 16 or later with the jdk.incubator.vector module enabled
+ * (--add-modules jdk.incubator.vector) and the keystone-vector jar on the
+ * classpath, VectorKernel is used instead; it processes as many points per
+ * instruction as the CPU's vector registers hold. Setting the system
+ * property keystone.kernel to "scalar" turns it off.
+ */
+abstract class WarpKernel {
+
+	static final String VECTOR_KERNEL = "deadpixel.keystone.VectorKernel";
+
+	// not final, so that the benchmarks can compare the kernels
+	static WarpKernel current = select();
+
+	/**
+	 * Maps count (x, y) pairs through the 3x3 matrix a, from in to out. The
+	 * arrays may be the same. Implementations may work in single precision.
+	 */
+	abstract void transform(double[] a, float[] in, int inOff, float[] out,
+			int outOff, int count);
+
+	/**
+	 * Maps the points (k * dx, y) through a, for k from 0 to count - 1, into
+	 * outX and outY from outOff on.
+	 */
+	abstract void transformRow(double[] a, double dx, double y, float[] outX,
+			float[] outY, int outOff, int count);
+
+	/**
+	 * Warps the pixels from rx0 (inclusive) to rx1 (exclusive) of scanline py
+	 * for a job whose source is a pixel array.
+	 */
+	abstract void warpRow(SoftwareWarp.WarpJob job, int py, int rx0, int rx1);
+
+	private static WarpKernel select() {
+		if (!"scalar".equals(System.getProperty("keystone.kernel"))) {
+			WarpKernel vector = load(VECTOR_KERNEL);
+			if (vector != null)
+				return vector;
+		}
+		return new Scalar();
+	}
+
+	/**
+	 * @return An instance of the named kernel, or null if it can't be loaded
+	 *         on this JVM
+	 */
+	static WarpKernel load(String className) {
+		try {
+			return Class.forName(className).asSubclass(WarpKernel.class)
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			// missing jar
+			return null;
+		} catch (LinkageError e) {
+			// older JVM or incubator module not enabled
+			return null;
+		} catch (ClassCastException e) {
+			return null;
+		}
+	}
+
+	static class Scalar extends WarpKernel {
+
+		void transform(double[] a, float[] in, int inOff, float[] out,
+				int outOff, int count) {
+			double a0 = a[0], a1 = a[1], a2 = a[2];
+			double a3 = a[3], a4 = a[4], a5 = a[5];
+			double a6 = a[6], a7 = a[7], a8 = a[8];
+			int end = inOff + count * 2;
+			for (int i = inOff, j = outOff; i < end; i += 2, j += 2) {
+				double x = in[i];
+				double y = in[i + 1];
+				double w = 1 / (a6 * x + a7 * y + a8);
+				out[j] = (float) ((a0 * x + a1 * y + a2) * w);
+				out[j + 1] = (float) ((a3 * x + a4 * y + a5) * w);
+			}
+		}
+
+		void transformRow(double[] a, double dx, double y, float[] outX,
+				float[] outY, int outOff, int count) {
+			for (int k = 0; k < count; k++) {
+				double x = k * dx;
+				double w = a[6] * x + a[7] * y + a[8];
+				outX[outOff + k] = (float) ((a[0] * x + a[1] * y + a[2]) / w);
+				outY[outOff + k] = (float) ((a[3] * x + a[4] * y + a[5]) / w);
+			}
+		}
+
+		void warpRow(SoftwareWarp.WarpJob job, int py, int rx0, int rx1) {
+			double[] inv = job.inv;
+			double a0 = inv[0], a3 = inv[3], a6 = inv[6];
+
+			// the numerators and denominator are linear along a scanline, so
+			// only the division is left for every pixel
+			double lx = rx0 + 0.5 - job.offX;
+			double ly = py + 0.5 - job.offY;
+			double nu = a0 * lx + inv[1] * ly + inv[2];
+			double nv = a3 * lx + inv[4] * ly + inv[5];
+			double nw = a6 * lx + inv[7] * ly + inv[8];
+
+			int[] src = job.src;
+			int[] dst = job.dst;
+			double w = job.w, h = job.h;
+			int index = py * job.dstW + rx0;
+			for (int px = rx0; px < rx1; px++, index++) {
+				double iw = 1 / nw;
+				double u = nu * iw;
+				double v = nv * iw;
+				nu += a0;
+				nv += a3;
+				nw += a6;
+
+				if (u < 0 || v < 0 || u >= w || v >= h)
+					continue;
+
+				dst[index] = SoftwareWarp.sample(src, job.srcW, job.srcH,
+						(float) (u * job.uScale + job.uOffset),
+						(float) (v * job.vScale + job.vOffset));
+			}
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+/**
+ * A precomputed inverse warp for one surface, used by SoftwareWarp. For a
+ * grid of destination pixels it stores the matching source position in
+ * 16.16 fixed point, so that warping a frame is a table-driven gather with
+ * no divisions at all.
+ *
+ * To keep the memory use bounded, the grid is only as dense as the byte
+ * budget allows: every pixel if possible, otherwise every 2nd, 4th, ...
+ * pixel along both axes, with the positions in between interpolated
+ * linearly. The horizontal extent of the surface on each scanline is stored
+ * exactly, so the edges stay sharp whatever the grid spacing. If even the
+ * coarsest grid doesn't fit, or the source is too large for 16.16 fixed
+ * point, the table is left empty and the surface is warped directly.
+ *
+ * The table is rebuilt whenever the surface's mesh is recalculated, or the
+ * surface, source section or destination size changes.
+ */
+class WarpTable {
+
+	// 16 MB
+	static final int DEFAULT_MAX_BYTES = 16 << 20;
+
+	// cleared by the surface when the byte budget changes
+	boolean valid = false;
+
+	// set when the table could not be built within the budget; the job is
+	// then warped without it
+	boolean empty;
+
+	// what the table was built for
+	int meshVersion;
+	float offX, offY;
+	int srcW, srcH;
+	int tX, tY, tW, tH;
+	int dstW, dstH;
+
+	// destination bounds
+	int x0, y0, x1, y1;
+
+	// coarsest grid spacing tried, as a power of two
+	static final int MAX_SHIFT = 8;
+
+	// sources must be smaller than this along both axes, so that positions
+	// fit in 16.16 fixed point
+	static final int MAX_SOURCE_SIZE = 1 << 15;
+
+	// grid spacing is (1 << shift) pixels
+	int shift;
+	int cols;
+	int rows;
+
+	// source positions of the grid nodes, 16.16 fixed point
+	int[] gridX;
+	int[] gridY;
+
+	// covered pixels on each scanline, from spanStart (inclusive) to
+	// spanEnd (exclusive)
+	int[] spanStart;
+	int[] spanEnd;
+
+	boolean matches(SoftwareWarp.WarpJob job) {
+		return valid && meshVersion == job.meshVersion
+				&& offX == (float) job.offX && offY == (float) job.offY
+				&& srcW == job.srcW && srcH == job.srcH && tX == job.tX
+				&& tY == job.tY && tW == job.tW && tH == job.tH
+				&& dstW == job.dstW && dstH == job.dstH;
+	}
+
+	/**
+	 * Fills the table for the given job, using at most maxBytes for the
+	 * grid and scanline spans. If that is not possible, the table is marked
+	 * as empty instead.
+	 */
+	void build(SoftwareWarp.WarpJob job, int maxBytes) {
+		meshVersion = job.meshVersion;
+		offX = (float) job.offX;
+		offY = (float) job.offY;
+		srcW = job.srcW;
+		srcH = job.srcH;
+		tX = job.tX;
+		tY = job.tY;
+		tW = job.tW;
+		tH = job.tH;
+		dstW = job.dstW;
+		dstH = job.dstH;
+
+		x0 = job.x0;
+		y0 = job.y0;
+		x1 = job.x1;
+		y1 = job.y1;
+		int width = Math.max(1, x1 - x0);
+		int height = Math.max(1, y1 - y0);
+
+		valid = true;
+		empty = true;
+		if (srcW > MAX_SOURCE_SIZE || srcH > MAX_SOURCE_SIZE)
+			return;
+
+		// pick the densest grid that fits in the budget
+		shift = 0;
+		while (bytes(width, height, shift) > maxBytes) {
+			if (++shift > MAX_SHIFT)
+				return;
+		}
+		empty = false;
+		cols = ((width - 1) >> shift) + 2;
+		rows = ((height - 1) >> shift) + 2;
+
+		if (gridX == null || gridX.length < cols * rows) {
+			gridX = new int[cols * rows];
+			gridY = new int[cols * rows];
+		}
+		if (spanStart == null || spanStart.length < height) {
+			spanStart = new int[height];
+			spanEnd = new int[height];
+		}
+
+		double[] m = job.inv;
+		float maxX = srcW - 1;
+		float maxY = srcH - 1;
+		int step = 1 << shift;
+
+		for (int j = 0; j < rows; j++) {
+			double ly = y0 + j * step + 0.5 - job.offY;
+			for (int k = 0; k < cols; k++) {
+				double lx = x0 + k * step + 0.5 - job.offX;
+				double iw = 1 / (m[6] * lx + m[7] * ly + m[8]);
+				double u = (m[0] * lx + m[1] * ly + m[2]) * iw;
+				double v = (m[3] * lx + m[4] * ly + m[5]) * iw;
+				float sx = (float) (u * job.uScale + job.uOffset);
+				float sy = (float) (v * job.vScale + job.vOffset);
+				// clamped here, so that anything interpolated in between is
+				// in range too
+				sx = sx < 0 ? 0 : (sx > maxX ? maxX : sx);
+				sy = sy < 0 ? 0 : (sy > maxY ? maxY : sy);
+				gridX[j * cols + k] = (int) (sx * 65536);
+				gridY[j * cols + k] = (int) (sy * 65536);
+			}
+		}
+
+		// the exact horizontal extent of the quad on every scanline
+		for (int py = y0; py < y1; py++) {
+			double ly = py + 0.5 - job.offY;
+			int first = x1;
+			int last = x0 - 1;
+			for (int px = x0; px < x1; px++) {
+				double lx = px + 0.5 - job.offX;
+				double iw = 1 / (m[6] * lx + m[7] * ly + m[8]);
+				double u = (m[0] * lx + m[1] * ly + m[2]) * iw;
+				double v = (m[3] * lx + m[4] * ly + m[5]) * iw;
+				if (u >= 0 && v >= 0 && u < job.w && v < job.h) {
+					if (px < first)
+						first = px;
+					last = px;
+				}
+			}
+			spanStart[py - y0] = first;
+			spanEnd[py - y0] = Math.max(first, last + 1);
+		}
+
+	}
+
+	/**
+	 * @return The size of the grid and scanline spans for a width x height
+	 *         area with a grid spacing of (1 << shift) pixels
+	 */
+	static long bytes(int width, int height, int shift) {
+		long nodes = (long) (((width - 1) >> shift) + 2)
+				* (((height - 1) >> shift) + 2);
+		return nodes * 8 + height * 8L;
+	}
+
+	/**
+	 * @return a job that warps the source, either src or buffer, into the
+	 *         columns from clipX0 (inclusive) to clipX1 (exclusive) of dst
+	 *         using this table
+	 */
+	SoftwareWarp.RowJob gather(final int[] src, final PixelBuffer buffer,
+			final int[] dst, final int clipX0, final int clipX1) {
+		return new SoftwareWarp.RowJob() {
+			public void warpRows(int rowStart, int rowEnd) {
+				gatherRows(src, buffer, dst, rowStart, rowEnd, clipX0, clipX1);
+			}
+		};
+	}
+
+	void gatherRows(int[] src, PixelBuffer buffer, int[] dst, int rowStart,
+			int rowEnd, int clipX0, int clipX1) {
+		int mask = (1 << shift) - 1;
+
+		for (int py = rowStart; py < rowEnd; py++) {
+			int r = py - y0;
+			int start = Math.max(spanStart[r], clipX0);
+			int end = Math.min(spanEnd[r], clipX1);
+			if (start >= end)
+				continue;
+
+			if (shift == 0) {
+				// one grid node per pixel, nothing to interpolate
+				int n = r * cols + (start - x0);
+				int index = py * dstW + start;
+				for (int px = start; px < end; px++, n++, index++) {
+					dst[index] = fetch(src, buffer, gridX[n], gridY[n]);
+				}
+				continue;
+			}
+
+			// the two grid rows around this scanline, and where we are in
+			// between them
+			int top = (r >> shift) * cols;
+			int bottom = top + cols;
+			int fy = r & mask;
+
+			int px = start;
+			int k = (px - x0) >> shift;
+			int index = py * dstW + px;
+			while (px < end) {
+				// positions at the grid columns on either side, on this
+				// scanline
+				int ax = lerp(gridX[top + k], gridX[bottom + k], fy);
+				int ay = lerp(gridY[top + k], gridY[bottom + k], fy);
+				int bx = lerp(gridX[top + k + 1], gridX[bottom + k + 1], fy);
+				int by = lerp(gridY[top + k + 1], gridY[bottom + k + 1], fy);
+				int dx = (bx - ax) >> shift;
+				int dy = (by - ay) >> shift;
+
+				int offset = (px - x0) & mask;
+				int sx = ax + dx * offset;
+				int sy = ay + dy * offset;
+				int stop = Math.min(end, x0 + ((k + 1) << shift));
+				for (; px < stop; px++, index++) {
+					dst[index] = fetch(src, buffer, sx, sy);
+					sx += dx;
+					sy += dy;
+				}
+				k++;
+			}
+		}
+	}
+
+	/**
+	 * Samples the source at a 16.16 fixed point position.
+	 */
+	private int fetch(int[] src, PixelBuffer buffer, int sx, int sy) {
+		int ix = sx >> 16;
+		int iy = sy >> 16;
+		int fx = (sx >> 8) & 0xFF;
+		int fy = (sy >> 8) & 0xFF;
+		if (buffer != null)
+			return buffer.blend(ix, iy, fx, fy);
+		int i = iy * srcW + ix;
+		int nx = ix < srcW - 1 ? 1 : 0;
+		int ny = iy < srcH - 1 ? srcW : 0;
+		return SoftwareWarp.blend(src[i], src[i + nx], src[i + ny], src[i
+				+ ny + nx], fx, fy);
+	}
+
+	/**
+	 * Interpolates between two grid rows; f is the distance from the first
+	 * row, in pixels.
+	 */
+	private int lerp(int a, int b, int f) {
+		return a + (int) (((long) (b - a) * f) >> shift);
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BinaryLayoutTest {
+
+	@Test
+	public void roundTripsSurfaceTypes() throws Exception {
+		Keystone ks = Surfaces.keystone();
+		Surfaces.create(ks, 320, 240, 6, 10, 20, 300, 5, 310, 250, 0, 230);
+		MeshWarpSurface mesh = ks.createMeshWarpSurface(200, 100, 8);
+		mesh.setInfluence(3);
+		MeshPoint p = mesh.addControlPoint(4, 4);
+		p.moveTo(120, 40);
+		mesh.setPosition(400, 300);
+
+		ByteBuffer data = BinaryLayout.encode(LayoutSnapshot
+				.capture(ks.surfaces));
+		Keystone loaded = Surfaces.keystone();
+		BinaryLayout.decode(data).apply(loaded);
+
+		assertEquals(2, loaded.surfaces.size());
+		assertFalse(loaded.surfaces.get(0) instanceof MeshWarpSurface);
+		assertTrue(loaded.surfaces.get(1) instanceof MeshWarpSurface);
+		MeshWarpSurface copy = (MeshWarpSurface) loaded.surfaces.get(1);
+		assertEquals(3, copy.getInfluence());
+
+		for (int i = 0; i < 2; i++) {
+			MeshSnapshot a = ks.surfaces.get(i).snapshot();
+			MeshSnapshot b = loaded.surfaces.get(i).snapshot();
+			assertEquals(a.x, b.x, 0);
+			assertEquals(a.y, b.y, 0);
+			assertArrayEquals(a.controlIndices, b.controlIndices);
+			assertArrayEquals(a.meshX, b.meshX, 1e-4f);
+			assertArrayEquals(a.meshY, b.meshY, 1e-4f);
+		}
+	}
+
+	@Test
+	public void skipsSurfaceOfOtherType() throws Exception {
+		Keystone ks = Surfaces.keystone();
+		ks.createMeshWarpSurface(200, 100, 8).setPosition(50, 60);
+		LayoutSnapshot saved = LayoutSnapshot.capture(ks.surfaces);
+
+		Keystone other = Surfaces.keystone();
+		CornerPinSurface plain = other.createCornerPinSurface(200, 100, 8);
+		assertEquals(0, saved.applyChanges(other));
+		assertEquals(0, plain.x, 0);
+	}
+}
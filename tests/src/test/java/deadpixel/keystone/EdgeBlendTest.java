@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+public class EdgeBlendTest {
+
+	/**
+	 * Two surfaces showing overlapping halves of the same texture.
+	 */
+	static List<CornerPinSurface> overlapping(PImage texture) {
+		Keystone ks = new Keystone(new PApplet());
+		CornerPinSurface left = ks.createCornerPinSurface(60, 100, 5);
+		CornerPinSurface right = ks.createCornerPinSurface(60, 100, 5);
+		show(left, texture, 0);
+		show(right, texture, 40);
+		return Arrays.asList(left, right);
+	}
+
+	static void show(CornerPinSurface s, PImage texture, int x) {
+		s.blendTexture = texture;
+		s.blendTX = x;
+		s.blendTY = 0;
+		s.blendTW = 60;
+		s.blendTH = 100;
+	}
+
+	@Test
+	public void masksAreKeptWhileSectionsAreUnchanged() {
+		List<CornerPinSurface> surfaces = overlapping(new PImage(100, 100));
+		EdgeBlend blend = new EdgeBlend(2.2f);
+		blend.update(surfaces);
+		PImage mask = surfaces.get(0).blendMask;
+		assertNotNull(mask);
+
+		blend.update(surfaces);
+		assertSame(mask, surfaces.get(0).blendMask);
+	}
+
+	@Test
+	public void masksAreRegeneratedForAnotherTexture() {
+		List<CornerPinSurface> surfaces = overlapping(new PImage(100, 100));
+		EdgeBlend blend = new EdgeBlend(2.2f);
+		blend.update(surfaces);
+		PImage mask = surfaces.get(0).blendMask;
+
+		// same sections, different texture object
+		PImage other = new PImage(100, 100);
+		show(surfaces.get(0), other, 0);
+		show(surfaces.get(1), other, 40);
+		blend.update(surfaces);
+		assertNotNull(surfaces.get(0).blendMask);
+		assertNotSame(mask, surfaces.get(0).blendMask);
+	}
+
+	@Test
+	public void masksAreRegeneratedWhenASectionMoves() {
+		List<CornerPinSurface> surfaces = overlapping(new PImage(100, 100));
+		EdgeBlend blend = new EdgeBlend(2.2f);
+		blend.update(surfaces);
+		PImage mask = surfaces.get(0).blendMask;
+
+		surfaces.get(1).blendTX = 30;
+		blend.update(surfaces);
+		assertNotSame(mask, surfaces.get(0).blendMask);
+	}
+}
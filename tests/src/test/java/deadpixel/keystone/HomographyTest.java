@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import processing.core.PVector;
+
+public class HomographyTest {
+
+	static final double EPSILON = 1e-9;
+
+	// (x, y) for each corner of a few destination quads, TL, TR, BR, BL
+	static final double[][] QUADS = {
+			// the source rectangle itself
+			{ 0, 0, 640, 0, 640, 480, 0, 480 },
+			// scaled and moved: affine
+			{ 10, 20, 1290, 20, 1290, 980, 10, 980 },
+			// sheared parallelogram: affine, takes the special case
+			{ 50, 0, 690, 30, 640, 510, 0, 480 },
+			// keystoned trapezoid
+			{ 100, 0, 540, 0, 640, 480, 0, 480 },
+			// arbitrary convex quad
+			{ 13, -7, 700, 40, 610, 530, -25, 445 } };
+
+	static Homography create(double[] q) {
+		Homography h = new Homography();
+		h.setQuadToQuad(0, 0, 640, 0, 640, 480, 0, 480, q[0], q[1], q[2],
+				q[3], q[4], q[5], q[6], q[7]);
+		return h;
+	}
+
+	@Test
+	public void mapsCornersOntoQuad() {
+		double[] src = { 0, 0, 640, 0, 640, 480, 0, 480 };
+		double[] p = new double[2];
+		for (double[] q : QUADS) {
+			Homography h = create(q);
+			for (int c = 0; c < 8; c += 2) {
+				h.transform(src[c], src[c + 1], p);
+				assertEquals(q[c], p[0], EPSILON);
+				assertEquals(q[c + 1], p[1], EPSILON);
+
+				h.inverseTransform(q[c], q[c + 1], p);
+				assertEquals(src[c], p[0], EPSILON);
+				assertEquals(src[c + 1], p[1], EPSILON);
+			}
+		}
+	}
+
+	@Test
+	public void identity() {
+		Homography h = create(QUADS[0]);
+		double[] p = new double[2];
+		h.transform(123.25, 456.5, p);
+		assertEquals(123.25, p[0], EPSILON);
+		assertEquals(456.5, p[1], EPSILON);
+	}
+
+	@Test
+	public void affineScaleAndTranslate() {
+		Homography h = create(QUADS[1]);
+		double[] p = new double[2];
+		h.transform(100, 200, p);
+		assertEquals(10 + 100 * 2, p[0], EPSILON);
+		assertEquals(20 + 200 * 2, p[1], EPSILON);
+	}
+
+	/**
+	 * A perspective transform keeps the intersection of the diagonals, which
+	 * is the center of the rectangle, at the intersection of the quad's
+	 * diagonals.
+	 */
+	@Test
+	public void mapsCenterOntoDiagonals() {
+		double[] p = new double[2];
+		for (double[] q : QUADS) {
+			Homography h = create(q);
+			h.transform(320, 240, p);
+
+			// intersection of TL-BR and TR-BL
+			double x1 = q[0], y1 = q[1], x2 = q[4], y2 = q[5];
+			double x3 = q[2], y3 = q[3], x4 = q[6], y4 = q[7];
+			double d = (x1 - x2) * (y3 - y4) - (y1 - y2) * (x3 - x4);
+			double a = x1 * y2 - y1 * x2;
+			double b = x3 * y4 - y3 * x4;
+			assertEquals((a * (x3 - x4) - (x1 - x2) * b) / d, p[0], 1e-6);
+			assertEquals((a * (y3 - y4) - (y1 - y2) * b) / d, p[1], 1e-6);
+		}
+	}
+
+	@Test
+	public void inverseRoundTrip() {
+		double[] p = new double[2];
+		double[] back = new double[2];
+		for (double[] q : QUADS) {
+			Homography h = create(q);
+			for (int y = 0; y <= 480; y += 48) {
+				for (int x = 0; x <= 640; x += 64) {
+					h.transform(x, y, p);
+					h.inverseTransform(p[0], p[1], back);
+					assertEquals(x, back[0], 1e-6);
+					assertEquals(y, back[1], 1e-6);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void batchMatchesSinglePoints() {
+		Homography h = create(QUADS[4]);
+		float[] pts = { 0, 0, 17.5f, 300.25f, 639, 479, 320, 1 };
+		float[] out = new float[pts.length];
+		h.transform(pts, 0, out, 0, pts.length / 2);
+		double[] p = new double[2];
+		for (int i = 0; i < pts.length; i += 2) {
+			h.transform(pts[i], pts[i + 1], p);
+			assertEquals(p[0], out[i], 1e-3);
+			assertEquals(p[1], out[i + 1], 1e-3);
+		}
+
+		// in place, through the inverse
+		h.inverseTransform(out, 0, out.length / 2);
+		for (int i = 0; i < pts.length; i++)
+			assertEquals(pts[i], out[i], 1e-2);
+	}
+
+	@Test
+	public void surfaceMeshFollowsHomography() {
+		Keystone ks = Surfaces.keystone();
+		double[] q = QUADS[4];
+		float[] corners = new float[8];
+		for (int i = 0; i < 8; i++)
+			corners[i] = (float) q[i];
+		CornerPinSurface s = Surfaces.create(ks, 640, 480, 8, corners);
+		MeshSnapshot m = s.snapshot();
+
+		Homography h = create(q);
+		double[] p = new double[2];
+		int res = s.getRes() + 1;
+		for (int i = 0; i < res * res; i++) {
+			h.transform((i % res) * 640.0 / (res - 1), (i / res) * 480.0
+					/ (res - 1), p);
+			assertEquals(p[0], m.meshX[i], 1e-3);
+			assertEquals(p[1], m.meshY[i], 1e-3);
+		}
+	}
+
+	@Test
+	public void cursorFollowsInverse() {
+		Keystone ks = Surfaces.keystone();
+		double[] q = QUADS[4];
+		float[] corners = new float[8];
+		for (int i = 0; i < 8; i++)
+			corners[i] = (float) q[i];
+		CornerPinSurface s = Surfaces.create(ks, 640, 480, 8, corners);
+		s.setPosition(30, 40);
+
+		Homography h = create(q);
+		double[] p = new double[2];
+		h.inverseTransform(200.5 - 30, 150.25 - 40, p);
+		PVector cursor = s.getTransformedCursor(200.5f, 150.25f);
+		assertEquals(p[0], cursor.x, 1e-3);
+		assertEquals(p[1], cursor.y, 1e-3);
+
+		h.inverseTransform(200 - 30, 150 - 40, p);
+		cursor = s.getTransformedCursor(200, 150);
+		assertEquals((int) p[0], cursor.x, 0);
+		assertEquals((int) p[1], cursor.y, 0);
+	}
+}
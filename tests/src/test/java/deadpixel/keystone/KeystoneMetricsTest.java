@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+public class KeystoneMetricsTest {
+
+	/**
+	 * A renderer that records nothing, enough to drive render() and
+	 * renderAll() without a display.
+	 */
+	static PGraphics graphics(PApplet parent) {
+		PGraphics g = new PGraphics();
+		g.setParent(parent);
+		g.setPrimary(false);
+		g.setSize(200, 200);
+		return g;
+	}
+
+	@Test
+	public void renderAllMatchesSeparateRenders() {
+		PApplet parent = new PApplet();
+		Keystone ks = new Keystone(parent);
+		ks.setMetricsEnabled(true);
+		CornerPinSurface small = ks.createCornerPinSurface(100, 100, 5);
+		CornerPinSurface large = ks.createCornerPinSurface(100, 100, 20);
+		PGraphics g = graphics(parent);
+		PImage texture = new PImage(100, 100);
+
+		small.render(g, texture);
+		large.render(g, texture);
+		ks.pre();
+		KeystoneMetrics metrics = ks.getMetrics();
+		long separate = metrics.getVerticesPerFrame();
+		assertTrue(separate > 0);
+
+		small.lastRenderNanos = 0;
+		large.lastRenderNanos = 0;
+		ks.renderAll(g, texture);
+		ks.pre();
+		assertEquals(separate, metrics.getVerticesPerFrame());
+
+		// every surface is charged for its part of the batch
+		long[] nanos = metrics.getSurfaceRenderNanos();
+		assertEquals(2, nanos.length);
+		assertTrue(nanos[1] > 0);
+		assertTrue(nanos[1] >= nanos[0]);
+		ks.dispose();
+	}
+
+	@Test
+	public void skippedSurfaceReportsNoTime() {
+		PApplet parent = new PApplet();
+		Keystone ks = new Keystone(parent);
+		ks.setMetricsEnabled(true);
+		CornerPinSurface first = ks.createCornerPinSurface(100, 100, 10);
+		CornerPinSurface second = ks.createCornerPinSurface(100, 100, 10);
+		PGraphics g = graphics(parent);
+		PImage texture = new PImage(100, 100);
+		KeystoneMetrics metrics = ks.getMetrics();
+
+		first.render(g, texture);
+		second.render(g, texture);
+		ks.pre();
+		long[] nanos = metrics.getSurfaceRenderNanos();
+		assertTrue(nanos[0] > 0);
+		assertTrue(nanos[1] > 0);
+
+		// only the first one is drawn in the next frame
+		first.render(g, texture);
+		ks.pre();
+		nanos = metrics.getSurfaceRenderNanos();
+		assertTrue(nanos[0] > 0);
+		assertEquals(0, nanos[1]);
+
+		ks.createCornerPinSurface(100, 100, 10);
+		ks.pre();
+		assertEquals(3, metrics.getSurfaceRenderNanos().length);
+		ks.dispose();
+	}
+
+	@Test
+	public void registersUnderDocumentedName() throws Exception {
+		Keystone ks = Surfaces.keystone();
+		ks.setMetricsEnabled(true);
+		Set<ObjectName> names = ManagementFactory.getPlatformMBeanServer()
+				.queryNames(new ObjectName("deadpixel.keystone:type=Keystone,*"),
+						null);
+		assertEquals(1, names.size());
+		assertNotNull(names.iterator().next().getKeyProperty("id"));
+
+		ks.setMetricsEnabled(false);
+		names = ManagementFactory.getPlatformMBeanServer().queryNames(
+				new ObjectName("deadpixel.keystone:type=Keystone,*"), null);
+		assertEquals(0, names.size());
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LayoutSnapshotTest {
+
+	@Test
+	public void reloadClearsAddedControlPoints() {
+		Keystone ks = Surfaces.keystone();
+		MeshWarpSurface s = ks.createMeshWarpSurface(200, 200, 9);
+		LayoutSnapshot saved = LayoutSnapshot.capture(ks.surfaces);
+		float[] meshX = s.snapshot().meshX.clone();
+		float[] meshY = s.snapshot().meshY.clone();
+
+		MeshPoint p = s.addControlPoint(4, 4);
+		p.moveTo(130, 70);
+		assertTrue(LayoutSnapshot.differs(saved.surfaces[0], s));
+
+		assertEquals(1, saved.applyChanges(ks));
+		MeshSnapshot m = s.snapshot();
+		assertFalse(m.isControlPoint(p.getIndex()));
+		assertEquals(4, m.controlIndices.length);
+		assertArrayEquals(meshX, m.meshX, 1e-3f);
+		assertArrayEquals(meshY, m.meshY, 1e-3f);
+		assertFalse(LayoutSnapshot.differs(saved.surfaces[0], s));
+	}
+
+	@Test
+	public void reloadKeepsSavedControlPoints() {
+		Keystone ks = Surfaces.keystone();
+		MeshWarpSurface s = ks.createMeshWarpSurface(200, 200, 9);
+		MeshPoint kept = s.addControlPoint(2, 2);
+		kept.moveTo(40, 60);
+		LayoutSnapshot saved = LayoutSnapshot.capture(ks.surfaces);
+
+		MeshPoint added = s.addControlPoint(6, 6);
+		added.moveTo(150, 140);
+		kept.moveTo(10, 10);
+		saved.apply(ks);
+
+		MeshSnapshot m = s.snapshot();
+		assertTrue(m.isControlPoint(kept.getIndex()));
+		assertFalse(m.isControlPoint(added.getIndex()));
+		assertEquals(40, m.meshX[kept.getIndex()], 0);
+		assertEquals(60, m.meshY[kept.getIndex()], 0);
+	}
+
+	@Test
+	public void unchangedSurfaceIsNotTouched() {
+		Keystone ks = Surfaces.keystone();
+		MeshWarpSurface s = ks.createMeshWarpSurface(200, 200, 9);
+		s.addControlPoint(3, 5).moveTo(70, 120);
+		LayoutSnapshot saved = LayoutSnapshot.capture(ks.surfaces);
+		assertEquals(0, saved.applyChanges(ks));
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Several nodes in one JVM, talking over the loopback. Skipped where the
+ * machine has no multicast route.
+ */
+public class LayoutSyncTest {
+
+	static final String GROUP = "239.0.0.57";
+
+	// how long to wait for packets to go around
+	static final long TIMEOUT = 5000;
+
+	int port;
+
+	List<Keystone> nodes = new ArrayList<Keystone>();
+
+	@Before
+	public void choosePort() {
+		port = 20000 + new Random().nextInt(20000);
+	}
+
+	@After
+	public void stop() {
+		for (Keystone ks : nodes)
+			ks.stopSync();
+	}
+
+	Keystone node(int surfaces, boolean master) {
+		Keystone ks = Surfaces.keystone();
+		for (int i = 0; i < surfaces; i++)
+			ks.createCornerPinSurface(100, 100, 4);
+		ks.startSync(GROUP, port, master);
+		assumeTrue("no multicast on this machine", ks.sync != null);
+		nodes.add(ks);
+		return ks;
+	}
+
+	interface Condition {
+		boolean holds();
+	}
+
+	/**
+	 * Runs frames on every node until the condition holds.
+	 */
+	void await(Condition condition) throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (!condition.holds()) {
+			assertTrue("timed out", System.currentTimeMillis() < end);
+			for (Keystone ks : nodes)
+				ks.sync.update(ks);
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void deltaPropagates() throws Exception {
+		Keystone a = node(3, true);
+		final Keystone b = node(3, false);
+		// let both nodes see each other's startup packets
+		frames(20);
+
+		a.getSurface(1).setPosition(120, 45);
+		await(new Condition() {
+			public boolean holds() {
+				CornerPinSurface s = b.getSurface(1);
+				return s.x == 120 && s.y == 45;
+			}
+		});
+	}
+
+	@Test
+	public void reorderedAndDuplicateDeltasAreDropped() throws Exception {
+		final Keystone b = node(3, false);
+		MulticastSocket peer = new MulticastSocket();
+		try {
+			peer.setTimeToLive(1);
+			long sender = 42;
+			send(peer, delta(sender, 5, 0, 50, 50));
+			// older than the last change to surface 0, but the only one to
+			// surface 1
+			send(peer, delta(sender, 4, 0, 40, 40, 1, 10, 10));
+			// a duplicate of 5 with other values
+			send(peer, delta(sender, 5, 0, 99, 99));
+			// the marker: once it is applied, everything before it was read
+			send(peer, delta(sender, 6, 2, 11, 11));
+			await(new Condition() {
+				public boolean holds() {
+					return b.getSurface(2).x == 11;
+				}
+			});
+		} finally {
+			peer.close();
+		}
+		assertEquals(50, b.getSurface(0).x, 0);
+		assertEquals(50, b.getSurface(0).y, 0);
+		assertEquals(10, b.getSurface(1).x, 0);
+		assertEquals(10, b.getSurface(1).y, 0);
+	}
+
+	@Test
+	public void lateJoinerReceivesChunkedSnapshot() throws Exception {
+		// several datagrams' worth of layout
+		int count = 2000;
+		Keystone a = node(count, true);
+		for (int i = 0; i < count; i++)
+			a.getSurface(i).setPosition(i, 2 * i);
+		assertTrue(BinaryLayout.encode(LayoutSnapshot.capture(a.surfaces))
+				.remaining() > 2 * LayoutSync.MAX_CHUNK);
+		frames(5);
+
+		final Keystone b = node(count, false);
+		final int last = count - 1;
+		await(new Condition() {
+			public boolean holds() {
+				return b.getSurface(last).x == last;
+			}
+		});
+		for (int i = 0; i < count; i++) {
+			assertEquals(i, b.getSurface(i).x, 0);
+			assertEquals(2 * i, b.getSurface(i).y, 0);
+		}
+	}
+
+	void frames(int n) throws InterruptedException {
+		for (int k = 0; k < n; k++) {
+			for (Keystone ks : nodes)
+				ks.sync.update(ks);
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * A DELTA packet; changes are (surface, x, y) triples for positions.
+	 */
+	static ByteBuffer delta(long sender, long seq, float... changes) {
+		int n = changes.length / 3;
+		ByteBuffer packet = ByteBuffer.allocate(LayoutSync.HEADER_SIZE + 4 + n
+				* LayoutSync.DELTA_SIZE);
+		packet.putInt(LayoutSync.MAGIC);
+		packet.put(LayoutSync.DELTA);
+		packet.putLong(sender);
+		packet.putLong(seq);
+		packet.putInt(n);
+		for (int i = 0; i < changes.length; i += 3) {
+			packet.putInt((int) changes[i]);
+			packet.putInt(-1);
+			packet.putFloat(changes[i + 1]);
+			packet.putFloat(changes[i + 2]);
+		}
+		return packet;
+	}
+
+	void send(MulticastSocket socket, ByteBuffer packet) throws Exception {
+		socket.send(new DatagramPacket(packet.array(), packet.position(),
+				InetAddress.getByName(GROUP), port));
+	}
+}
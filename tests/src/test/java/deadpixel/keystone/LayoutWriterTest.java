@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LayoutWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void flushWritesLatestSnapshot() throws Exception {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = ks.createCornerPinSurface(100, 100, 4);
+		File file = new File(folder.getRoot(), "layout.bin");
+
+		// long enough that nothing is written before the flush
+		LayoutWriter writer = new LayoutWriter(60000);
+		for (int i = 0; i < 20; i++) {
+			s.setPosition(i, 2 * i);
+			writer.schedule(file, LayoutSnapshot.capture(ks.surfaces), true);
+		}
+		writer.flush();
+
+		LayoutSnapshot saved = BinaryLayout.decode(ByteBuffer.wrap(Files
+				.readAllBytes(file.toPath())));
+		assertEquals(19, saved.surfaces[0].x, 0);
+		assertEquals(38, saved.surfaces[0].y, 0);
+		// no temporary files are left behind
+		assertArrayEquals(new String[] { "layout.bin" }, folder.getRoot()
+				.list());
+		writer.shutdown();
+	}
+
+	@Test
+	public void writesFromSeveralThreadsDoNotClash() throws Exception {
+		final File file = new File(folder.getRoot(), "layout.bin");
+		final byte[] a = new byte[1 << 20];
+		final byte[] b = new byte[1 << 20];
+		Arrays.fill(a, (byte) 'a');
+		Arrays.fill(b, (byte) 'b');
+
+		Thread other = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 20; i++)
+						LayoutWriter.write(file, ByteBuffer.wrap(a));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		other.start();
+		for (int i = 0; i < 20; i++)
+			LayoutWriter.write(file, ByteBuffer.wrap(b));
+		other.join();
+
+		// whichever write came last, the file holds all of it and only it
+		byte[] saved = Files.readAllBytes(file.toPath());
+		assertEquals(a.length, saved.length);
+		for (byte c : saved)
+			assertEquals(saved[0], c);
+		assertArrayEquals(new String[] { "layout.bin" }, folder.getRoot()
+				.list());
+	}
+}
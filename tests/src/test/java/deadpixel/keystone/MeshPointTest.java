@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+@SuppressWarnings("deprecation")
+public class MeshPointTest {
+
+	@Test
+	public void fieldsFollowTheMesh() {
+		Keystone ks = Surfaces.keystone();
+		MeshWarpSurface s = ks.createMeshWarpSurface(200, 100, 4);
+		s.setPosition(10, 20);
+		MeshPoint p = s.addControlPoint(2, 2);
+		assertEquals(p.getX(), p.x, 0);
+		assertEquals(p.getY(), p.y, 0);
+		assertEquals(100, p.u, 0);
+		assertEquals(50, p.v, 0);
+
+		p.moveTo(130, 90);
+		assertEquals(120, p.x, 0);
+		assertEquals(70, p.y, 0);
+
+		// the fields are a copy; assigning them leaves the mesh alone
+		p.x = 0;
+		assertEquals(120, s.snapshot().meshX[p.getIndex()], 0);
+		assertEquals(120, p.getX(), 0);
+		assertEquals(120, p.x, 0);
+	}
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+public class SoftwareWarpTest {
+
+	static final int W = 320;
+	static final int H = 240;
+
+	static final int DST_W = 400;
+	static final int DST_H = 300;
+
+	// left untouched by the warp outside of the surface
+	static final int BACKGROUND = 0xFF123456;
+
+	static final float[] CORNERS = { 12, 5, 330, 30, 300, 270, -8, 230 };
+
+	/**
+	 * A source whose red and green channels rise smoothly across the image,
+	 * so that a sample's color tells where it was taken.
+	 */
+	static PImage gradient() {
+		PImage img = new PImage(W, H, PApplet.ARGB);
+		for (int y = 0; y < H; y++)
+			for (int x = 0; x < W; x++)
+				img.pixels[y * W + x] = 0xFF000000 | (x * 255 / (W - 1)) << 16
+						| (y * 255 / (H - 1)) << 8;
+		img.updatePixels();
+		return img;
+	}
+
+	static int[] noise(long seed) {
+		Random random = new Random(seed);
+		int[] px = new int[W * H];
+		for (int i = 0; i < px.length; i++)
+			px[i] = random.nextInt();
+		return px;
+	}
+
+	static PImage background() {
+		PImage img = new PImage(DST_W, DST_H, PApplet.ARGB);
+		Arrays.fill(img.pixels, BACKGROUND);
+		return img;
+	}
+
+	static CornerPinSurface surface(Keystone ks) {
+		CornerPinSurface s = Surfaces.create(ks, W, H, 10, CORNERS);
+		s.x = 20;
+		s.y = 10;
+		return s;
+	}
+
+	/**
+	 * Every vertex of the mesh that render() draws shows, in the warped
+	 * image, the source color at the vertex's texture coordinates.
+	 */
+	@Test
+	public void matchesSurfaceMesh() {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = surface(ks);
+		PImage src = gradient();
+		PImage dst = background();
+		new SoftwareWarp(2).render(s, src, dst);
+
+		MeshSnapshot m = s.snapshot();
+		int length = s.vertexStream(m, 0, 0, W, H);
+		float[] vs = s.vertices;
+		int checked = 0;
+		for (int i = 0; i < length; i += 4) {
+			float u = vs[i + 2], v = vs[i + 3];
+			// the outline is where coverage is decided, not sampling
+			if (u < 1 || v < 1 || u > W - 2 || v > H - 2)
+				continue;
+			int px = (int) (vs[i] + m.x);
+			int py = (int) (vs[i + 1] + m.y);
+			int c = dst.pixels[py * DST_W + px];
+			assertEquals(u * 255 / (W - 1), (c >> 16) & 0xFF, 3);
+			assertEquals(v * 255 / (H - 1), (c >> 8) & 0xFF, 3);
+			checked++;
+		}
+		assertTrue(checked > 0);
+	}
+
+	/**
+	 * Like CornerPinSurface.render(texture), the short form shows the
+	 * surface's own size of the source, not the whole of it.
+	 */
+	@Test
+	public void defaultSectionMatchesSurfaceRender() {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = Surfaces.create(ks, 200, 150, 10, CORNERS);
+		PImage src = gradient();
+		PImage section = background();
+		PImage whole = background();
+		SoftwareWarp warp = new SoftwareWarp(2);
+		warp.render(s, src, 0, 0, 200, 150, section);
+		warp.render(s, src, whole);
+		assertArrayEquals(section.pixels, whole.pixels);
+
+		PixelBuffer buffer = new PixelBuffer(IntBuffer.wrap(src.pixels), W, H);
+		PImage buffered = background();
+		warp.render(s, buffer, buffered);
+		assertArrayEquals(section.pixels, buffered.pixels);
+	}
+
+	@Test
+	public void leavesOutsideUntouched() {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = surface(ks);
+		PImage dst = background();
+		new SoftwareWarp(2).render(s, gradient(), dst);
+
+		assertEquals(BACKGROUND, dst.pixels[0]);
+		assertEquals(BACKGROUND, dst.pixels[DST_W * DST_H - 1]);
+		// inside the quad
+		assertTrue(dst.pixels[150 * DST_W + 180] != BACKGROUND);
+	}
+
+	@Test
+	public void identityCopiesSource() {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = ks.createCornerPinSurface(W, H, 4);
+		int[] src = noise(1);
+		int[] dst = new int[W * H];
+		new SoftwareWarp(1).render(s, src, W, H, 0, 0, W, H, dst, W, H);
+		assertArrayEquals(src, dst);
+	}
+
+	@Test
+	public void threadCountDoesNotMatter() {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = surface(ks);
+		int[] src = noise(2);
+		int[] one = new int[DST_W * DST_H];
+		int[] four = new int[DST_W * DST_H];
+		new SoftwareWarp(1).render(s, src, W, H, 0, 0, W, H, one, DST_W,
+				DST_H);
+		new SoftwareWarp(4).render(s, src, W, H, 0, 0, W, H, four, DST_W,
+				DST_H);
+		assertArrayEquals(one, four);
+	}
+
+	@Test
+	public void lookupTableMatchesDirectWarp() {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = surface(ks);
+		PImage src = gradient();
+		PImage direct = background();
+		PImage table = background();
+		SoftwareWarp warp = new SoftwareWarp(2);
+		warp.render(s, src, direct);
+		s.setLookupTableEnabled(true);
+		warp.render(s, src, table);
+
+		int differing = 0;
+		for (int i = 0; i < direct.pixels.length; i++) {
+			int a = direct.pixels[i], b = table.pixels[i];
+			if (a == BACKGROUND || b == BACKGROUND) {
+				// coverage can only differ along the outline
+				if (a != b)
+					differing++;
+				continue;
+			}
+			for (int shift = 0; shift < 32; shift += 8)
+				assertEquals((a >>> shift) & 0xFF, (b >>> shift) & 0xFF, 2);
+		}
+		assertTrue(differing < 2 * (DST_W + DST_H));
+	}
+
+	@Test
+	public void tableOverBudgetFallsBackToDirectWarp() {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = surface(ks);
+		int[] src = noise(6);
+		int[] expected = new int[DST_W * DST_H];
+		int[] actual = new int[DST_W * DST_H];
+		SoftwareWarp warp = new SoftwareWarp(2);
+		warp.render(s, src, W, H, 0, 0, W, H, expected, DST_W, DST_H);
+
+		// not even the scanline spans fit
+		s.setLookupTableEnabled(true);
+		s.setLookupTableMaxBytes(1024);
+		warp.render(s, src, W, H, 0, 0, W, H, actual, DST_W, DST_H);
+		assertTrue(s.lookupTable.empty);
+		assertArrayEquals(expected, actual);
+
+		// a coarse grid fits, and stays within the budget
+		int budget = DST_H * 8 + 8 * 1024;
+		s.setLookupTableMaxBytes(budget);
+		warp.render(s, src, W, H, 0, 0, W, H, actual, DST_W, DST_H);
+		WarpTable table = s.lookupTable;
+		assertTrue(!table.empty);
+		assertTrue(WarpTable.bytes(table.x1 - table.x0, table.y1 - table.y0,
+				table.shift) <= budget);
+	}
+
+	@Test
+	public void tableRejectsSourcesTooLargeForFixedPoint() {
+		Keystone ks = Surfaces.keystone();
+		int srcW = WarpTable.MAX_SOURCE_SIZE + 8, srcH = 2;
+		CornerPinSurface s = ks.createCornerPinSurface(srcW, srcH, 4);
+		int[] src = new int[srcW * srcH];
+		for (int i = 0; i < src.length; i++)
+			src[i] = 0xFF000000 | i;
+		int[] expected = new int[srcW * srcH];
+		int[] actual = new int[srcW * srcH];
+		SoftwareWarp warp = new SoftwareWarp(1);
+		warp.render(s, src, srcW, srcH, 0, 0, srcW, srcH, expected, srcW,
+				srcH);
+		s.setLookupTableEnabled(true);
+		warp.render(s, src, srcW, srcH, 0, 0, srcW, srcH, actual, srcW, srcH);
+		assertTrue(s.lookupTable.empty);
+		assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	public void pixelBufferMatchesArray() {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = surface(ks);
+		int[] src = noise(3);
+		int[] expected = new int[DST_W * DST_H];
+		int[] actual = new int[DST_W * DST_H];
+		SoftwareWarp warp = new SoftwareWarp(2);
+		warp.render(s, src, W, H, 0, 0, W, H, expected, DST_W, DST_H);
+		warp.render(s, new PixelBuffer(IntBuffer.wrap(src), W, H), 0, 0, W,
+				H, actual, DST_W, DST_H);
+		assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	public void dirtyRectanglesMatchFullWarp() {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = surface(ks);
+		int[] src = noise(4);
+		int[] incremental = new int[DST_W * DST_H];
+		SoftwareWarp warp = new SoftwareWarp(2);
+		warp.renderDirty(s, src, W, H, 0, 0, W, H, new int[0], incremental,
+				DST_W, DST_H);
+
+		Random random = new Random(5);
+		for (int frame = 0; frame < 10; frame++) {
+			int x = random.nextInt(W - 16), y = random.nextInt(H - 16);
+			for (int j = y; j < y + 16; j++)
+				for (int i = x; i < x + 16; i++)
+					src[j * W + i] = random.nextInt();
+			warp.renderDirty(s, src, W, H, 0, 0, W, H, new int[] { x, y, 16,
+					16 }, incremental, DST_W, DST_H);
+
+			int[] full = new int[DST_W * DST_H];
+			warp.render(s, src, W, H, 0, 0, W, H, full, DST_W, DST_H);
+			assertArrayEquals(full, incremental);
+		}
+	}
+}
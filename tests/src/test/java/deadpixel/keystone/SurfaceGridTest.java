@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SurfaceGridTest {
+
+	@Test
+	public void findsSurfaceAfterSetPosition() {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = ks.createCornerPinSurface(100, 100, 4);
+		assertEquals(0, ks.getSurfaceIndexAt(50, 50));
+
+		s.setPosition(1000, 0);
+		assertEquals(-1, ks.getSurfaceIndexAt(50, 50));
+		assertEquals(0, ks.getSurfaceIndexAt(1050, 50));
+	}
+
+	/**
+	 * The position fields are public; assigning them directly must move the
+	 * surface for picking as well, from the next frame on, even if it is not
+	 * rendered again.
+	 */
+	@Test
+	public void findsSurfaceAfterDirectAssignment() {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = ks.createCornerPinSurface(100, 100, 4);
+		assertEquals(0, ks.getSurfaceIndexAt(50, 50));
+
+		s.x = 1000;
+		ks.pre();
+		assertEquals(-1, ks.getSurfaceIndexAt(50, 50));
+		assertEquals(0, ks.getSurfaceIndexAt(1050, 50));
+
+		s.y = 600;
+		ks.pre();
+		int[] index = new int[2];
+		ks.containsAll(new float[] { 1050, 50, 1050, 650 }, index);
+		assertArrayEquals(new int[] { -1, 0 }, index);
+	}
+
+	@Test
+	public void findsSurfaceMovedAfterSnapshot() {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = ks.createCornerPinSurface(100, 100, 4);
+		assertEquals(0, ks.getSurfaceIndexAt(50, 50));
+
+		// a render picks up the new position first
+		s.x = 500;
+		s.snapshot();
+		assertEquals(-1, ks.getSurfaceIndexAt(50, 50));
+		assertEquals(0, ks.getSurfaceIndexAt(550, 50));
+	}
+
+	@Test
+	public void topMostSurfaceWins() {
+		Keystone ks = Surfaces.keystone();
+		ks.createCornerPinSurface(100, 100, 4);
+		CornerPinSurface top = ks.createCornerPinSurface(100, 100, 4);
+		assertEquals(1, ks.getSurfaceIndexAt(50, 50));
+
+		top.x = 300;
+		ks.pre();
+		assertEquals(0, ks.getSurfaceIndexAt(50, 50));
+		assertEquals(1, ks.getSurfaceIndexAt(350, 50));
+	}
+
+	/**
+	 * Queries only look at the surfaces in the queried cell: a direct
+	 * assignment is picked up once per frame, not by scanning every surface
+	 * on every query.
+	 */
+	@Test
+	public void queriesDoNotScanAllSurfaces() {
+		Keystone ks = Surfaces.keystone();
+		CornerPinSurface s = ks.createCornerPinSurface(100, 100, 4);
+		for (int i = 1; i < 100; i++)
+			ks.createCornerPinSurface(100, 100, 4).setPosition(i * 200, 0);
+		assertEquals(0, ks.getSurfaceIndexAt(50, 50));
+
+		s.x = -10000;
+		// still indexed where it was until the frame ends
+		assertEquals(-1, ks.getSurfaceIndexAt(-9950, 50));
+		ks.pre();
+		assertEquals(0, ks.getSurfaceIndexAt(-9950, 50));
+		assertEquals(-1, ks.getSurfaceIndexAt(50, 50));
+	}
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import processing.core.PApplet;
+
+/**
+ * Surfaces for the tests, created without a display: the Keystone is given
+ * a bare PApplet, which is enough for everything but the OpenGL paths.
+ */
+class Surfaces {
+
+	static Keystone keystone() {
+		return new Keystone(new PApplet());
+	}
+
+	/**
+	 * @return A w x h surface whose corners are at the given positions, in
+	 *         TL, TR, BR, BL order
+	 */
+	static CornerPinSurface create(Keystone ks, int w, int h, int res,
+			float... corners) {
+		CornerPinSurface s = ks.createCornerPinSurface(w, h, res);
+		if (corners.length > 0)
+			s.setCorners(corners);
+		return s;
+	}
+}
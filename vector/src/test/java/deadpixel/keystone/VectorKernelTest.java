@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2009-15 David Bouchard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package deadpixel.keystone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.core.PApplet;
+
+/**
+ * The vector kernel against the scalar one, within the bounds its
+ * documentation gives: mapped points within a thousandth of a pixel, warped
+ * pixels within 2 per channel, and coverage only differing along the edges.
+ */
+public class VectorKernelTest {
+
+	static final float MAX_POINT_ERROR = 1e-3f;
+	static final int MAX_CHANNEL_ERROR = 2;
+
+	WarpKernel scalar;
+	WarpKernel vector;
+	WarpKernel selected;
+
+	Homography homography;
+
+	@Before
+	public void setUp() {
+		scalar = new WarpKernel.Scalar();
+		vector = WarpKernel.load(WarpKernel.VECTOR_KERNEL);
+		assertNotNull("the vector kernel does not load", vector);
+		selected = WarpKernel.current;
+
+		homography = new Homography();
+		homography.setQuadToQuad(0, 0, 1920, 0, 1920, 1080, 0, 1080, 30, 20,
+				1900, 80, 1850, 1070, 5, 1000);
+	}
+
+	@After
+	public void tearDown() {
+		WarpKernel.current = selected;
+	}
+
+	@Test
+	public void isSelected() {
+		assertTrue(selected instanceof VectorKernel);
+		assertTrue(SoftwareWarp.isVectorized());
+	}
+
+	@Test
+	public void transformMatchesScalar() {
+		Random random = new Random(1);
+		// an odd count, so that the scalar tail is used too
+		int count = 1003;
+		float[] in = new float[count * 2];
+		for (int i = 0; i < in.length; i++)
+			in[i] = random.nextFloat() * 1900;
+		float[] expected = new float[in.length + 2];
+		float[] actual = new float[in.length + 2];
+		scalar.transform(homography.inv, in, 0, expected, 2, count);
+		vector.transform(homography.inv, in, 0, actual, 2, count);
+		for (int i = 0; i < expected.length; i++)
+			assertEquals(expected[i], actual[i], MAX_POINT_ERROR);
+
+		// in place
+		vector.transform(homography.inv, in, 0, in, 0, count);
+		for (int i = 0; i < in.length; i++)
+			assertEquals(actual[i + 2], in[i], 0);
+	}
+
+	@Test
+	public void transformRowMatchesScalar() {
+		int count = 201;
+		double dx = 1920.0 / (count - 1);
+		float[] ex = new float[count], ey = new float[count];
+		float[] ax = new float[count + 3], ay = new float[count + 3];
+		for (int row = 0; row < count; row++) {
+			double y = row * 1080.0 / (count - 1);
+			scalar.transformRow(homography.m, dx, y, ex, ey, 0, count);
+			vector.transformRow(homography.m, dx, y, ax, ay, 3, count);
+			for (int k = 0; k < count; k++) {
+				assertEquals(ex[k], ax[k + 3], MAX_POINT_ERROR);
+				assertEquals(ey[k], ay[k + 3], MAX_POINT_ERROR);
+			}
+		}
+	}
+
+	@Test
+	public void warpRowMatchesScalar() {
+		int srcW = 640, srcH = 480, dstW = 700, dstH = 500;
+		Random random = new Random(2);
+		int[] src = new int[srcW * srcH];
+		for (int i = 0; i < src.length; i++)
+			src[i] = random.nextInt();
+
+		Keystone ks = new Keystone(new PApplet());
+		CornerPinSurface s = ks.createCornerPinSurface(600, 400, 10);
+		s.setPosition(7, 3);
+		s.setCorners(new float[] { 10, 5, 630, 40, 600, 470, -20, 420 });
+		SoftwareWarp warp = new SoftwareWarp(2);
+
+		WarpKernel.current = scalar;
+		int[] expected = new int[dstW * dstH];
+		warp.render(s, src, srcW, srcH, 3, 4, 600, 400, expected, dstW, dstH);
+		WarpKernel.current = vector;
+		int[] actual = new int[dstW * dstH];
+		warp.render(s, src, srcW, srcH, 3, 4, 600, 400, actual, dstW, dstH);
+
+		int covered = 0, coverage = 0;
+		for (int i = 0; i < expected.length; i++) {
+			int a = expected[i], b = actual[i];
+			if (a != 0)
+				covered++;
+			if (a == 0 || b == 0) {
+				// pixels whose centers are right on the outline
+				if (a != b)
+					coverage++;
+				continue;
+			}
+			for (int shift = 0; shift < 32; shift += 8)
+				assertEquals((a >>> shift) & 0xFF, (b >>> shift) & 0xFF,
+						MAX_CHANNEL_ERROR);
+		}
+		assertTrue(covered > 0);
+		assertTrue(coverage < 2 * (dstW + dstH));
+	}
+}